@@ -0,0 +1,20 @@
+package android.util;
+
+import org.kxml2.io.KXmlParser;
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * JVM replacement of the framework class, backed by kXML like on Android.
+ */
+public class Xml {
+
+    public static XmlPullParser newPullParser() {
+        return new KXmlParser();
+    }
+
+    public static XmlSerializer newSerializer() {
+        return new KXmlSerializer();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import fr.simon.marquis.preferencesmanager.util.XmlUtils;
+
+/**
+ * Synthetic preference files used by the benchmarks.
+ */
+public class Corpus {
+
+    /**
+     * Upper bound of the characters stored in a {@link Shape#LARGE_STRINGS}
+     * corpus, so that 100k entries still fit in the default heap
+     */
+    private static final int LARGE_STRINGS_BUDGET = 32 * 1024 * 1024;
+    private static final int LARGE_STRING_MAX_LENGTH = 64 * 1024;
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-.:/ \"&<>{}[],";
+
+    public enum Shape {
+        /**
+         * Every supported type, with short values
+         */
+        MIXED,
+        /**
+         * Only strings, as long as the budget allows (analytics caches,
+         * serialized JSON)
+         */
+        LARGE_STRINGS
+    }
+
+    public static Map<String, Object> generate(int entries, Shape shape) {
+        Random random = new Random(entries * 31L + shape.ordinal());
+        Map<String, Object> map = new HashMap<String, Object>(entries * 2);
+        int stringLength = Math.min(LARGE_STRING_MAX_LENGTH, LARGE_STRINGS_BUDGET / entries);
+        for (int i = 0; i < entries; i++) {
+            String key = "com.example.settings." + randomString(random, 8) + "_" + i;
+            if (shape == Shape.LARGE_STRINGS) {
+                map.put(key, randomString(random, stringLength));
+                continue;
+            }
+            switch (i % 6) {
+                case 0:
+                    map.put(key, randomString(random, 1 + random.nextInt(32)));
+                    break;
+                case 1:
+                    map.put(key, random.nextInt());
+                    break;
+                case 2:
+                    map.put(key, random.nextLong());
+                    break;
+                case 3:
+                    map.put(key, random.nextFloat() * 1000f);
+                    break;
+                case 4:
+                    map.put(key, random.nextBoolean());
+                    break;
+                default:
+                    Set<String> set = new HashSet<String>();
+                    for (int j = random.nextInt(4); j >= 0; j--) {
+                        set.add(randomString(random, 8));
+                    }
+                    map.put(key, set);
+                    break;
+            }
+        }
+        return map;
+    }
+
+    public static byte[] toXml(Map<String, Object> map) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out);
+        return out.toByteArray();
+    }
+
+    private static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
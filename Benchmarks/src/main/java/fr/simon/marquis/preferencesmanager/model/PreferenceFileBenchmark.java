@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import fr.simon.marquis.preferencesmanager.benchmark.Corpus;
+import fr.simon.marquis.preferencesmanager.util.FastXmlParser;
+import fr.simon.marquis.preferencesmanager.util.XmlMapLayout;
+import fr.simon.marquis.preferencesmanager.util.XmlUtils;
+
+/**
+ * Load and save round-trips of a preference file. PreferenceFile itself
+ * depends on the framework and on the root shell, so these benchmarks
+ * replay what fromXml and toXml do: parse the file content, build the
+ * sorted PreferenceMap, and serialize the map back to a String. The edit
+ * benchmark removes a key and adds it back, as renaming a key does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreferenceFileBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    @Param({"MIXED", "LARGE_STRINGS"})
+    public Corpus.Shape shape;
+
+    private Map<String, Object> map;
+    private String xml;
+    private PreferenceMap preferences;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        map = Corpus.generate(entries, shape);
+        xml = new String(Corpus.toXml(map), "UTF-8");
+        preferences = new PreferenceMap(PreferenceSortType.TYPE_AND_ALPHANUMERIC);
+        preferences.putAll(map);
+        keys = map.keySet().toArray(new String[map.size()]);
+    }
+
+    @Benchmark
+    public List<Entry<String, Object>> fromXml() throws Exception {
+        PreferenceMap preferences = new PreferenceMap(PreferenceSortType.TYPE_AND_ALPHANUMERIC);
+        preferences.putAll(FastXmlParser.readMapXml(xml, new XmlMapLayout()));
+        return preferences.asList();
+    }
+
+    @Benchmark
+    public Object edit() {
+        String key = keys[next];
+        next = (next + 1) % keys.length;
+        Object value = preferences.remove(key);
+        preferences.put(key, value);
+        return preferences.get(keys.length / 2);
+    }
+
+    @Benchmark
+    public String toXml() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out);
+        return out.toString();
+    }
+}
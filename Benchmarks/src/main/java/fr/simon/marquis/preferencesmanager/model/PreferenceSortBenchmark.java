@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import fr.simon.marquis.preferencesmanager.benchmark.Corpus;
+
+/**
+ * Sorting of the entries displayed by PreferenceAdapter, for both sort types:
+ * the PreferenceMap is sorted again from the other sort type, as when the
+ * sort is changed from the menu.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreferenceSortBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    @Param({"ALPHANUMERIC", "TYPE_AND_ALPHANUMERIC"})
+    public PreferenceSortType sortType;
+
+    private Map<String, Object> map;
+    private PreferenceMap preferences;
+
+    @Setup
+    public void setUp() {
+        map = Corpus.generate(entries, Corpus.Shape.MIXED);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        PreferenceSortType[] types = PreferenceSortType.values();
+        preferences = new PreferenceMap(types[(sortType.ordinal() + 1) % types.length]);
+        preferences.putAll(map);
+    }
+
+    @Benchmark
+    public List<Entry<String, Object>> sort() {
+        preferences.setSortType(sortType);
+        return preferences.asList();
+    }
+}
@@ -0,0 +1,10 @@
+package fr.simon.marquis.preferencesmanager.util;
+
+/**
+ * JVM replacement of the Android utilities of the app, with only what the
+ * pure-Java classes use.
+ */
+public class Utils {
+
+    public static final String TAG = "PreferencesManager";
+}
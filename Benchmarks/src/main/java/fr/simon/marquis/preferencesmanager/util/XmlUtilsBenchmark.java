@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fr.simon.marquis.preferencesmanager.benchmark.Corpus;
+
+/**
+ * Parse and serialize hot paths: XmlUtils (kXML based, like on a device),
+ * FastXmlParser and FastXmlSerializer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlUtilsBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    @Param({"MIXED", "LARGE_STRINGS"})
+    public Corpus.Shape shape;
+
+    private Map<String, Object> map;
+    private byte[] xml;
+
+    @Setup
+    public void setUp() throws Exception {
+        map = Corpus.generate(entries, shape);
+        xml = Corpus.toXml(map);
+    }
+
+    @Benchmark
+    public Object readMapXml() throws Exception {
+        return XmlUtils.readMapXml(new ByteArrayInputStream(xml));
+    }
+
+    @Benchmark
+    public Object fastReadMapXml() throws Exception {
+        return FastXmlParser.readMapXml(new ByteArrayInputStream(xml));
+    }
+
+    @Benchmark
+    public Object writeMapXml() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out);
+        return out;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import fr.simon.marquis.preferencesmanager.benchmark.Corpus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link FastXmlParser} must read every preference file into the same map as
+ * {@link XmlUtils#readMapXml}, and reject what XmlUtils rejects.
+ */
+public class FastXmlParserTest {
+
+    private static final String PROLOG = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n";
+
+    @Test
+    public void valueTypes() throws Exception {
+        assertSameMap(PROLOG + "<map>\n"
+                + "    <string name=\"string\">value</string>\n"
+                + "    <string name=\"empty\"></string>\n"
+                + "    <string name=\"emptyTag\" />\n"
+                + "    <int name=\"int\" value=\"42\" />\n"
+                + "    <int name=\"intMin\" value=\"-2147483648\" />\n"
+                + "    <long name=\"long\" value=\"9223372036854775807\" />\n"
+                + "    <float name=\"float\" value=\"1.5\" />\n"
+                + "    <float name=\"negativeZero\" value=\"-0.0\" />\n"
+                + "    <float name=\"nan\" value=\"NaN\" />\n"
+                + "    <float name=\"exponent\" value=\"1.0E-10\" />\n"
+                + "    <double name=\"double\" value=\"3.141592653589793\" />\n"
+                + "    <boolean name=\"true\" value=\"true\" />\n"
+                + "    <boolean name=\"false\" value=\"false\" />\n"
+                + "    <boolean name=\"upper\" value=\"TRUE\" />\n"
+                + "    <boolean name=\"other\" value=\"yes\" />\n"
+                + "    <null name=\"null\" />\n"
+                + "    <int name=\"long form\" value=\"7\"></int>\n"
+                + "    <set name=\"set\">\n"
+                + "        <string>a</string>\n"
+                + "        <string>b</string>\n"
+                + "        <string>a</string>\n"
+                + "    </set>\n"
+                + "    <set name=\"emptySet\" />\n"
+                + "    <set name=\"emptySetLong\"></set>\n"
+                + "</map>\n");
+    }
+
+    @Test
+    public void emptyAndNullDocuments() throws Exception {
+        assertSameMap("<map />");
+        assertSameMap("<map></map>");
+        assertSameMap(PROLOG + "<map>\n</map>\n");
+        assertNull(FastXmlParser.readMapXml("<null />"));
+        assertNull(XmlUtils.readMapXml(stream("<null />")));
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        assertSameMap("<map>"
+                + "<string name=\"predefined\">&lt;tag&gt; &amp; &quot;quoted&quot; &apos;single&apos;</string>"
+                + "<string name=\"decimal\">&#65;&#233;&#8364;</string>"
+                + "<string name=\"hexadecimal\">&#x41;&#xe9;&#x20AC;</string>"
+                + "<string name=\"&lt;name&gt; &amp; &quot;more&quot;\">key with entities</string>"
+                + "<string name='single&apos;quoted'>single quoted attribute</string>"
+                + "<int name=\"entity value\" value=\"&#49;2\" />"
+                + "<string name=\"json\">{&quot;a&quot;:[1,2],&quot;b&quot;:&quot;&lt;/x&gt;&quot;}</string>"
+                + "</map>");
+        // The kXML of the JVM truncates the supplementary characters, Android does not
+        assertEquals(Collections.singletonMap("emoji", "\ud83d\ude00"),
+                FastXmlParser.readMapXml("<map><string name=\"emoji\">&#x1F600;</string></map>"));
+    }
+
+    @Test
+    public void cdataAndComments() throws Exception {
+        assertSameMap("<!-- before the root --><map>"
+                + "<!-- between values -->"
+                + "<string name=\"cdata\"><![CDATA[<not a tag> & not an entity]]></string>"
+                + "<string name=\"brackets\"><![CDATA[a]]b]]]]></string>"
+                + "<string name=\"mixed\">a<![CDATA[<b>]]>c&amp;d</string>"
+                + "<string name=\"comment\">a<!-- dropped -->b</string>"
+                + "<int name=\"commented\" value=\"1\"><!-- ignored --></int>"
+                + "<set name=\"set\"><!-- in a set --><string>x</string></set>"
+                + "</map>");
+    }
+
+    @Test
+    public void whitespace() throws Exception {
+        assertSameMap("<?xml version=\"1.0\"?>\n\n<map>\n\t<string name=\"indented\">  leading and trailing  </string>\n"
+                + "<string name=\"newlines\">line 1\nline 2\r\nline 3\rline 4</string>\n"
+                + "<string name=\"blank\">   </string>\n"
+                + "<int   name = \"spaced\"\n\tvalue='5'   />\n"
+                + "<string name=\"tabs\">\ta\tb\t</string>\n"
+                + "</map>\n\n");
+    }
+
+    @Test
+    public void unicode() throws Exception {
+        assertSameMap(PROLOG + "<map>"
+                + "<string name=\"cl\u00e9\">\u00e9t\u00e9 \u00fcn\u00efc\u00f6d\u00e9 \u65e5\u672c\u8a9e \ud83d\ude00</string>"
+                + "<set name=\"ensemble\"><string>\u03b1</string><string>\u03b2</string></set>"
+                + "</map>");
+        assertSameMap("\ufeff<map><string name=\"bom\">after a byte order mark</string></map>");
+    }
+
+    @Test
+    public void duplicatedKeys() throws Exception {
+        assertSameMap("<map><int name=\"a\" value=\"1\" /><string name=\"a\">last wins</string></map>");
+    }
+
+    @Test
+    public void valuesAcrossBuffers() throws Exception {
+        // Longer than the 8k buffer of the parser, with entities on the boundaries
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("x&amp;y&#233;<![CDATA[z]]>");
+        }
+        assertSameMap("<map><string name=\"long\">" + sb + "</string><int name=\"after\" value=\"1\" /></map>");
+    }
+
+    @Test
+    public void generatedFiles() throws Exception {
+        for (Corpus.Shape shape : Corpus.Shape.values()) {
+            for (int entries : new int[]{1, 100, 5000}) {
+                Map<String, Object> map = Corpus.generate(entries, shape);
+                String xml = new String(Corpus.toXml(map), "UTF-8");
+                assertEquals(map, FastXmlParser.readMapXml(xml));
+                assertSameMap(xml);
+            }
+        }
+    }
+
+    @Test
+    public void randomFiles() throws Exception {
+        Random random = new Random(42);
+        String[] alphabet = {"a", "b", " ", "<", ">", "&", "\"", "'", "\n", "\t", "]", "\u00e9", "\ud83d\ude00"};
+        for (int i = 0; i < 200; i++) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (int j = random.nextInt(20); j >= 0; j--) {
+                StringBuilder sb = new StringBuilder();
+                for (int k = random.nextInt(30); k >= 0; k--) {
+                    sb.append(alphabet[random.nextInt(alphabet.length)]);
+                }
+                String str = sb.toString();
+                switch (random.nextInt(4)) {
+                    case 0:
+                        map.put("s" + j, str);
+                        break;
+                    case 1:
+                        map.put("i" + j, random.nextInt());
+                        break;
+                    case 2:
+                        Set<String> set = new HashSet<String>();
+                        set.add(str);
+                        map.put("set" + j, set);
+                        break;
+                    default:
+                        map.put(str.trim().isEmpty() ? "k" + j : str, random.nextBoolean());
+                        break;
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XmlUtils.writeMapXml(map, out);
+            assertSameMap(out.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void malformedDocuments() throws Exception {
+        assertBothFail("");
+        assertBothFail("<map>");
+        assertBothFail("<map><string name=\"a\">unterminated</map>");
+        assertBothFail("<map><string name=\"a\">value</strin></map>");
+        assertBothFail("<map><int name=\"a\" value=\"1\" /></mop>");
+        assertBothFail("<map><int name=\"a\" /></map>");
+        assertBothFail("<map><int name=\"a\" value=\"abc\" /></map>");
+        assertBothFail("<map><int name=\"a\" value=\"99999999999\" /></map>");
+        assertBothFail("<map><long name=\"a\" value=\"1.5\" /></map>");
+        assertBothFail("<map><float name=\"a\" value=\"\" /></map>");
+        assertBothFail("<map><unknown name=\"a\" value=\"1\" /></map>");
+        assertBothFail("<map><int name=\"a\" value=\"1\">text</int></map>");
+        assertBothFail("<map><int value=\"1\" /></map>");
+        assertBothFail("<map><string name=\"a\">a<b/></string></map>");
+        assertBothFail("<map><string name=\"a>value</string></map>");
+        assertBothFail("<map><string name=\"a\">&unknown;</string></map>");
+        assertBothFail("<map><string name=\"a\">&#xZZ;</string></map>");
+        assertBothFail("<map><set name=\"a\"><string>x</string></map>");
+        assertBothFail("<list><int value=\"1\" /></list>");
+    }
+
+    @Test
+    public void unsupportedStructuresAreRejected() throws Exception {
+        // XmlUtils reads them, PreferenceFile falls back to it for these
+        assertFastFails("<map><map name=\"nested\"><int name=\"a\" value=\"1\" /></map></map>");
+        assertFastFails("<map><list name=\"list\"><int value=\"1\" /></list></map>");
+        assertFastFails("<map><int-array name=\"array\" num=\"1\"><item value=\"1\" /></int-array></map>");
+        assertFastFails("<map><set name=\"nested\"><set><string>a</string></set></set></map>");
+    }
+
+    private static void assertSameMap(String xml) throws Exception {
+        HashMap<?, ?> expected = XmlUtils.readMapXml(stream(xml));
+        assertEquals(xml, expected, FastXmlParser.readMapXml(xml));
+        assertEquals(xml, expected, FastXmlParser.readMapXml(stream(xml)));
+        XmlMapLayout layout = new XmlMapLayout();
+        assertEquals(xml, expected, FastXmlParser.readMapXml(xml, layout));
+    }
+
+    private static void assertBothFail(String xml) {
+        try {
+            XmlUtils.readMapXml(stream(xml));
+            fail("XmlUtils read " + xml);
+        } catch (Exception expected) {
+            // Any exception, XmlUtils lets NumberFormatException through
+        }
+        assertFastFails(xml);
+    }
+
+    private static void assertFastFails(String xml) {
+        try {
+            FastXmlParser.readMapXml(xml);
+            fail("FastXmlParser read " + xml);
+        } catch (XmlPullParserException expected) {
+            // Expected
+        } catch (Exception e) {
+            throw new AssertionError("FastXmlParser threw " + e + " for " + xml);
+        }
+    }
+
+    private static ByteArrayInputStream stream(String xml) throws Exception {
+        return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import com.spazedog.lib.rootfw.RootFW;
+import com.spazedog.lib.rootfw.container.Data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The pool runs sh sessions here, they behave like the su ones of a device.
+ */
+public class RootShellPoolTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private RootShellPool mPool;
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new RootShellPool(2, false);
+        mDir = File.createTempFile("RootShellPoolTest", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void sessionsAreReused() {
+        RootFW first = mPool.execute(new Identity());
+        assertTrue(first.connected());
+        assertSame(first, mPool.execute(new Identity()));
+        assertTrue(mPool.isConnected());
+        assertEquals(0, mPool.getInFlight());
+        assertEquals(0, mPool.getReconnects());
+    }
+
+    @Test
+    public void readAndCopy() throws Exception {
+        File source = new File(mDir, "source's.xml");
+        FileOutputStream out = new FileOutputStream(source);
+        out.write("<map>\n<int name=\"a\" value=\"1\" />\n</map>\n".getBytes("UTF-8"));
+        out.close();
+
+        Data data = mPool.read(source.getAbsolutePath());
+        assertEquals("<map>\n<int name=\"a\" value=\"1\" />\n</map>", data.toString());
+
+        File destination = new File(mDir, "destination.xml");
+        assertTrue(mPool.copy(source.getAbsolutePath(), destination.getAbsolutePath()));
+        assertEquals(source.length(), destination.length());
+        assertFalse(mPool.copy(new File(mDir, "missing").getAbsolutePath(), destination.getAbsolutePath()));
+    }
+
+    @Test
+    public void commandsWaitForAFreeSession() throws Exception {
+        final CountDownLatch running = new CountDownLatch(2);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Set<RootFW> sessions = Collections.synchronizedSet(new HashSet<RootFW>());
+        final AtomicInteger completed = new AtomicInteger();
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mPool.execute(new RootShellPool.Command<Void>() {
+                        @Override
+                        public Void run(RootFW root) {
+                            sessions.add(root);
+                            running.countDown();
+                            await(proceed);
+                            return null;
+                        }
+                    });
+                    completed.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+
+        // Two commands hold the two sessions, the third one waits
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(2, mPool.getInFlight());
+        assertEquals(0, completed.get());
+
+        proceed.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_SECONDS * 1000);
+        }
+        assertEquals(3, completed.get());
+        assertEquals(2, sessions.size());
+        assertEquals(0, mPool.getInFlight());
+        assertTrue(mPool.getAverageWaitMillis() > 0);
+    }
+
+    @Test
+    public void deadIdleSessionIsReplaced() throws Exception {
+        RootFW first = mPool.execute(new Identity());
+        first.process().destroy();
+        first.process().waitFor();
+
+        RootFW second = mPool.execute(new Identity());
+        assertNotSame(first, second);
+        assertTrue(second.connected());
+        assertEquals(1, mPool.getReconnects());
+        assertSame(second, mPool.execute(new Identity()));
+    }
+
+    @Test
+    public void failedCommandClosesItsSession() {
+        final RootFW first = mPool.execute(new Identity());
+        try {
+            mPool.execute(new RootShellPool.Command<Void>() {
+                @Override
+                public Void run(RootFW root) {
+                    throw new IllegalStateException("Output half read");
+                }
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+        assertFalse(first.connected());
+        assertEquals(0, mPool.getInFlight());
+
+        // A new session is opened, the closed one is not a reconnect
+        RootFW second = mPool.execute(new Identity());
+        assertNotSame(first, second);
+        assertEquals(0, mPool.getReconnects());
+    }
+
+    @Test
+    public void interruptedWaitReturnsNull() throws Exception {
+        final RootShellPool pool = new RootShellPool(1, false);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pool.execute(new RootShellPool.Command<Void>() {
+                    @Override
+                    public Void run(RootFW root) {
+                        running.countDown();
+                        await(proceed);
+                        return null;
+                    }
+                });
+            }
+        });
+        holder.start();
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final AtomicInteger runs = new AtomicInteger();
+        Thread.currentThread().interrupt();
+        Void result = pool.execute(new RootShellPool.Command<Void>() {
+            @Override
+            public Void run(RootFW root) {
+                runs.incrementAndGet();
+                return null;
+            }
+        });
+        // The interrupt is kept for the caller
+        assertTrue(Thread.interrupted());
+        assertNull(result);
+        assertEquals(0, runs.get());
+        assertEquals(1, pool.getInFlight());
+
+        proceed.countDown();
+        holder.join(TIMEOUT_SECONDS * 1000);
+        assertEquals(0, pool.getInFlight());
+        assertTrue(pool.isConnected());
+    }
+
+    @Test
+    public void failedConnectionFreesItsPlace() {
+        final AtomicInteger failures = new AtomicInteger(2);
+        RootShellPool pool = new RootShellPool(1, false) {
+            @Override
+            RootFW newSession() {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("No shell");
+                }
+                return super.newSession();
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.execute(new Identity());
+                fail();
+            } catch (IllegalStateException expected) {
+                // Expected
+            }
+            assertEquals(0, pool.getInFlight());
+        }
+        // The only place of the pool was given back twice
+        assertTrue(pool.execute(new Identity()).connected());
+    }
+
+    @Test
+    public void backgroundThreadsLeaveASession() throws Exception {
+        assertEquals(1, mPool.getMaxBackgroundSessions());
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger backgroundRuns = new AtomicInteger();
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RootShellPool.setBackground(true);
+                    mPool.execute(new RootShellPool.Command<Void>() {
+                        @Override
+                        public Void run(RootFW root) {
+                            backgroundRuns.incrementAndGet();
+                            running.countDown();
+                            await(proceed);
+                            return null;
+                        }
+                    });
+                }
+            });
+            threads[i].start();
+        }
+
+        // One background command runs, the other one waits for it
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, backgroundRuns.get());
+        // The main thread still gets the other session
+        assertTrue(mPool.execute(new Identity()).connected());
+
+        proceed.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_SECONDS * 1000);
+        }
+        assertEquals(2, backgroundRuns.get());
+        assertEquals(0, mPool.getInFlight());
+    }
+
+    private static class Identity implements RootShellPool.Command<RootFW> {
+        @Override
+        public RootFW run(RootFW root) {
+            return root;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
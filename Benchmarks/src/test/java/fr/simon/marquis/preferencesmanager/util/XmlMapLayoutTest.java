@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import fr.simon.marquis.preferencesmanager.benchmark.Corpus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A spliced document is not byte for byte the output of
+ * {@link XmlUtils#writeMapXml}, which follows the order of the HashMap: it
+ * keeps the order and the text of the original document. What it guarantees
+ * is that it reads back as the same map, that the unchanged elements are
+ * copied verbatim and the changed ones written as writeMapXml writes them.
+ */
+public class XmlMapLayoutTest {
+
+    private static final String[] STRINGS = {"", "plain", "<tag> & \"quotes\" 'apos'", "line 1\nline 2", "  padded  ", "\u00e9t\u00e9 \ud83d\ude00", "]]>"};
+
+    @Test
+    public void updateRemoveAndAdd() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", 1);
+        map.put("b", "two");
+        map.put("c", true);
+        String xml = write(map);
+        XmlMapLayout layout = new XmlMapLayout();
+        assertEquals(map, FastXmlParser.readMapXml(xml, layout));
+        assertTrue(layout.isValid());
+        assertEquals(3, layout.size());
+
+        map.put("a", 10L);
+        map.remove("b");
+        map.put("d", Collections.singleton("x"));
+        String spliced = layout.splice(map, keys("a", "d"), keys("b"));
+        assertReadsAs(map, spliced);
+        assertEquals(3, layout.size());
+        // The unchanged element is copied, the changed ones are written by the serializer
+        assertTrue(spliced.contains(element("c", true)));
+        assertTrue(spliced.contains(element("a", 10L)));
+        assertTrue(spliced.contains(element("d", Collections.singleton("x"))));
+        assertFalse(spliced.contains("name=\"b\""));
+    }
+
+    @Test
+    public void untouchedTextIsKept() throws Exception {
+        String xml = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<!-- written by hand -->\n"
+                + "<map>\n"
+                + "  <int name='a' value='1'/>\n"
+                + "  <string name=\"b\"><![CDATA[<b>]]></string>\n"
+                + "  <boolean   name=\"c\" value=\"false\" />\n"
+                + "</map>\n";
+        XmlMapLayout layout = new XmlMapLayout();
+        Map<String, Object> map = FastXmlParser.readMapXml(xml, layout);
+        map.put("c", true);
+        map.put("e", 5);
+        String spliced = layout.splice(map, keys("c", "e"), keys());
+        assertReadsAs(map, spliced);
+        assertTrue(spliced.startsWith("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<!-- written by hand -->\n"
+                + "<map>\n"
+                + "  <int name='a' value='1'/>\n"
+                + "  <string name=\"b\"><![CDATA[<b>]]></string>\n"
+                + "  " + element("c", true) + "\n"));
+        // New keys take the indentation of the second element
+        assertTrue(spliced.endsWith("\n  " + element("e", 5) + "\n</map>\n"));
+    }
+
+    @Test
+    public void removingEveryKeyRewritesTheFile() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", 1);
+        XmlMapLayout layout = new XmlMapLayout();
+        FastXmlParser.readMapXml(write(map), layout);
+        assertNull(layout.splice(new HashMap<String, Object>(), keys(), keys("a")));
+    }
+
+    @Test
+    public void duplicatedKeysInvalidateTheLayout() throws Exception {
+        XmlMapLayout layout = new XmlMapLayout();
+        FastXmlParser.readMapXml("<map><int name=\"a\" value=\"1\" /><int name=\"a\" value=\"2\" /></map>", layout);
+        assertFalse(layout.isValid());
+        assertNull(layout.splice(Collections.<String, Object>singletonMap("a", 3), keys("a"), keys()));
+    }
+
+    @Test
+    public void randomChangesReadAsWriteMapXml() throws Exception {
+        Random random = new Random(42);
+        for (Corpus.Shape shape : Corpus.Shape.values()) {
+            Map<String, Object> map = Corpus.generate(100, shape);
+            String xml = write(map);
+            XmlMapLayout layout = new XmlMapLayout();
+            FastXmlParser.readMapXml(xml, layout);
+
+            for (int round = 0; round < 20; round++) {
+                Set<String> changed = new HashSet<String>();
+                Set<String> removed = new HashSet<String>();
+                List<String> keys = new ArrayList<String>(map.keySet());
+                for (int i = random.nextInt(10); i >= 0; i--) {
+                    String key = keys.isEmpty() || random.nextInt(4) == 0 ? "new" + round + "_" + i : keys.get(random.nextInt(keys.size()));
+                    if (random.nextInt(3) == 0 && map.containsKey(key)) {
+                        map.remove(key);
+                        changed.remove(key);
+                        removed.add(key);
+                    } else {
+                        map.put(key, randomValue(random));
+                        removed.remove(key);
+                        changed.add(key);
+                    }
+                }
+
+                // The layout updated by the previous splice gives the same
+                // document as the layout of a fresh parse
+                XmlMapLayout fresh = new XmlMapLayout();
+                FastXmlParser.readMapXml(xml, fresh);
+                String spliced = layout.splice(map, changed, removed);
+                assertNotNull(spliced);
+                assertEquals(spliced, fresh.splice(map, changed, removed));
+                assertReadsAs(map, spliced);
+                assertEquals(map.size(), layout.size());
+                xml = spliced;
+            }
+        }
+    }
+
+    private static Object randomValue(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return random.nextInt();
+            case 1:
+                return random.nextLong();
+            case 2:
+                return random.nextFloat();
+            case 3:
+                return random.nextBoolean();
+            case 4:
+                Set<String> set = new HashSet<String>();
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    set.add(STRINGS[random.nextInt(STRINGS.length)]);
+                }
+                return set;
+            default:
+                return STRINGS[random.nextInt(STRINGS.length)];
+        }
+    }
+
+    private static void assertReadsAs(Map<String, Object> map, String spliced) throws Exception {
+        assertEquals(map, XmlUtils.readMapXml(new ByteArrayInputStream(spliced.getBytes("UTF-8"))));
+        assertEquals(XmlUtils.readMapXml(new ByteArrayInputStream(write(map).getBytes("UTF-8"))), FastXmlParser.readMapXml(spliced));
+    }
+
+    private static String write(Map<String, Object> map) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeMapXml(map, out);
+        return out.toString("UTF-8");
+    }
+
+    private static String element(String key, Object value) throws Exception {
+        StringWriter writer = new StringWriter();
+        FastXmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(writer);
+        XmlUtils.writeValueXml(value, key, serializer);
+        serializer.flush();
+        return writer.toString().trim();
+    }
+
+    private static Set<String> keys(String... keys) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, keys);
+        return set;
+    }
+}
@@ -23,18 +23,31 @@ import android.text.TextUtils;
 
 import java.io.File;
 
+import fr.simon.marquis.preferencesmanager.util.IconLoader;
 import fr.simon.marquis.preferencesmanager.util.Utils;
 
 public class AppEntry {
 
+    /**
+     * Package name of the application
+     */
+    private final String mPackageName;
     /**
      *
      */
-    private final ApplicationInfo mInfo;
+    private ApplicationInfo mInfo;
+    /**
+     * Time of the last install or update of the application
+     */
+    private final long mLastUpdateTime;
+    /**
+     * Version of the application, part of the key of its cached icon
+     */
+    private final int mVersionCode;
     /**
-     * File of the application
+     * Flags of the application
      */
-    private final File mApkFile;
+    private final int mFlags;
     /**
      * Label of the application
      */
@@ -43,10 +56,6 @@ public class AppEntry {
      * Value used to sort the list of applications
      */
     private String mSortingValue;
-    /**
-     * Icon drawable displayed in the list
-     */
-    private Drawable mIcon;
     /**
      * Detect if app is starred by user
      */
@@ -57,19 +66,84 @@ public class AppEntry {
     private char headerChar;
 
 
-    public AppEntry(ApplicationInfo info, Context context) {
+    public AppEntry(ApplicationInfo info, long lastUpdateTime, int versionCode, Context context) {
+        mPackageName = info.packageName;
         mInfo = info;
-        isFavorite = Utils.isFavorite(mInfo.packageName, context);
-        mApkFile = new File(info.sourceDir);
+        mLastUpdateTime = lastUpdateTime;
+        mVersionCode = versionCode;
+        mFlags = info.flags;
+        isFavorite = Utils.isFavorite(mPackageName, context);
         loadLabels(context);
-        // Pre-load the icons for smooth scrolling
-        getIcon(context);
     }
 
+    /**
+     * Entry restored from {@link fr.simon.marquis.preferencesmanager.util.AppListSnapshot},
+     * its ApplicationInfo is loaded when needed
+     */
+    public AppEntry(String packageName, String label, String sortingValue, char headerChar, long lastUpdateTime, int versionCode, int flags) {
+        mPackageName = packageName;
+        mLabel = label;
+        mSortingValue = sortingValue;
+        this.headerChar = headerChar;
+        mLastUpdateTime = lastUpdateTime;
+        mVersionCode = versionCode;
+        mFlags = flags;
+        isFavorite = sortingValue.startsWith(" ");
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    /**
+     * @return The ApplicationInfo, null for an entry restored from a snapshot
+     * until {@link #setApplicationInfo(ApplicationInfo)} is called
+     */
     public ApplicationInfo getApplicationInfo() {
         return mInfo;
     }
 
+    public void setApplicationInfo(ApplicationInfo info) {
+        mInfo = info;
+    }
+
+    /**
+     * @return The ApplicationInfo, loaded from PackageManager if needed, or
+     * null if the application is not installed anymore
+     */
+    public ApplicationInfo loadApplicationInfo(Context ctx) {
+        if (mInfo == null) {
+            PackageManager pm = ctx.getPackageManager();
+            if (pm != null) {
+                try {
+                    mInfo = pm.getApplicationInfo(mPackageName, 0);
+                } catch (PackageManager.NameNotFoundException ignored) {
+                }
+            }
+        }
+        return mInfo;
+    }
+
+    public long getLastUpdateTime() {
+        return mLastUpdateTime;
+    }
+
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean isSystem() {
+        return (mFlags & ApplicationInfo.FLAG_SYSTEM) != 0;
+    }
+
+    public boolean isFavorite() {
+        return isFavorite;
+    }
+
     public String getLabel() {
         return mLabel;
     }
@@ -78,18 +152,16 @@ public class AppEntry {
         return mSortingValue;
     }
 
-    public Drawable getIcon(Context ctx) {
-        if (mIcon == null) {
-            PackageManager pm = ctx.getPackageManager();
-            if (pm != null && mApkFile.exists()) {
-                mIcon = mInfo.loadIcon(pm);
-            } else {
-                mIcon = ctx.getResources().getDrawable(android.R.drawable.sym_def_app_icon);
-            }
-            return mIcon;
-        } else {
-            return mIcon;
+    /**
+     * Decode the icon, use {@link IconLoader} to get it from the cache
+     */
+    public Drawable loadIcon(Context ctx) {
+        PackageManager pm = ctx.getPackageManager();
+        ApplicationInfo info = loadApplicationInfo(ctx);
+        if (pm != null && info != null && new File(info.sourceDir).exists()) {
+            return info.loadIcon(pm);
         }
+        return ctx.getResources().getDrawable(android.R.drawable.sym_def_app_icon);
     }
 
     @Override
@@ -111,7 +183,7 @@ public class AppEntry {
      */
     private void loadLabels(Context ctx) {
         if (mLabel == null) {
-            if (!mApkFile.exists()) {
+            if (!new File(mInfo.sourceDir).exists()) {
                 mLabel = mInfo.packageName;
             } else {
                 PackageManager pm = ctx.getPackageManager();
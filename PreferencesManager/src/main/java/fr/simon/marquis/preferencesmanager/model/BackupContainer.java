@@ -110,4 +110,8 @@ public class BackupContainer {
         return backups.get(key);
     }
 
+    public Set<String> getFiles() {
+        return backups.keySet();
+    }
+
 }
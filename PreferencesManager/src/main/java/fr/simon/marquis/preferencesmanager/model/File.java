@@ -55,4 +55,21 @@ public class File {
         return path;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof File)) {
+            return false;
+        }
+        File file = (File) o;
+        return (name == null ? file.name == null : name.equals(file.name)) && (path == null ? file.path == null : path.equals(file.path));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (name == null ? 0 : name.hashCode()) + (path == null ? 0 : path.hashCode());
+    }
+
 }
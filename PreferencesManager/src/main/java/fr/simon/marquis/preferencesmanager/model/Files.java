@@ -63,4 +63,17 @@ public class Files {
         return array;
     }
 
+    /**
+     * @return true if the other list holds the same files, in the same order
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Files && files.equals(((Files) o).files);
+    }
+
+    @Override
+    public int hashCode() {
+        return files.hashCode();
+    }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.model;
+
+import java.util.Map.Entry;
+
+/**
+ * A read-only copy of a preference, made when it is read from a
+ * {@link PreferenceMap}. It keeps the type tag of the map, so its type is
+ * known without testing the class of the value, see
+ * {@link PreferenceType#fromEntry(Entry)}.
+ */
+public final class PreferenceEntry implements Entry<String, Object> {
+
+    private final String mKey;
+    private final Object mValue;
+    private final byte mTag;
+
+    PreferenceEntry(String key, Object value, byte tag) {
+        super();
+        mKey = key;
+        mValue = value;
+        mTag = tag;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public Object getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return One of the type tags of {@link PreferenceMap}
+     */
+    byte getTag() {
+        return mTag;
+    }
+
+    @Override
+    public Object setValue(Object object) {
+        // The position of the entry may depend on its value
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Entry)) {
+            return false;
+        }
+        Entry<?, ?> e = (Entry<?, ?>) o;
+        return mKey.equals(e.getKey()) && (mValue == null ? e.getValue() == null : mValue.equals(e.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+        return mKey.hashCode() ^ (mValue == null ? 0 : mValue.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return mKey + "=" + mValue;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package fr.simon.marquis.preferencesmanager.model;
 
+import android.content.Context;
 import android.text.TextUtils;
 
 import org.xmlpull.v1.XmlPullParserException;
@@ -23,27 +24,136 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import fr.simon.marquis.preferencesmanager.ui.App;
 import fr.simon.marquis.preferencesmanager.ui.PreferencesActivity;
+import fr.simon.marquis.preferencesmanager.util.FastXmlParser;
+import fr.simon.marquis.preferencesmanager.util.PreferenceDiff;
+import fr.simon.marquis.preferencesmanager.util.Utils;
+import fr.simon.marquis.preferencesmanager.util.XmlMapLayout;
 import fr.simon.marquis.preferencesmanager.util.XmlUtils;
 
 public class PreferenceFile {
 
     private boolean isValidPreferenceFile = true;
-    private Map<String, Object> mPreferences;
-    private List<Entry<String, Object>> mList;
+    private final PreferenceMap mPreferences;
+
+    // Layout of the document on disk, and the keys modified since it was read
+    private XmlMapLayout mLayout;
+    private final Set<String> mChangedKeys = new HashSet<String>();
+    private final Set<String> mRemovedKeys = new HashSet<String>();
+    private EditSession mSession;
+    // Documents prepared and not written yet, and a failed write not done again
+    private int mPendingSaves;
+    private boolean mSaveFailed;
+
+    // Original value of a key which did not exist
+    private static final Object NONE = new Object();
+
+    /**
+     * Edits written at once by {@link #commit}, instead of a write and a
+     * restart of the application per edit. The edits are applied to the
+     * preferences as they are made, so they are displayed; {@link #rollback}
+     * puts back the values they had when the session began.
+     */
+    public class EditSession {
+        // Value of each edited key before its first edit, or NONE
+        private final Map<String, Object> mOriginals = new HashMap<String, Object>();
+        private final Set<String> mChangedBefore = new HashSet<String>(mChangedKeys);
+        private final Set<String> mRemovedBefore = new HashSet<String>(mRemovedKeys);
+
+        private EditSession() {
+            super();
+        }
+
+        public void put(String key, Object value) {
+            add(null, key, value, false);
+        }
+
+        public void remove(String key) {
+            removeValue(key);
+        }
+
+        /**
+         * @return The number of keys edited
+         */
+        public int size() {
+            return mOriginals.size();
+        }
+
+        /**
+         * Write every edit with a single write, and end the session. The
+         * session stays open if the write fails.
+         *
+         * @param kill Restart the application so it reads the new values
+         * @return true if the edits were written
+         */
+        public boolean commit(String fullPath, String packageName, Context ctx, boolean kill) {
+            if (mSession != this) {
+                return false;
+            }
+            // Keys edited back to their original value are not written again
+            for (Entry<String, Object> entry : mOriginals.entrySet()) {
+                String key = entry.getKey();
+                Object original = entry.getValue();
+                boolean unchanged;
+                if (original == NONE) {
+                    unchanged = !mPreferences.containsKey(key);
+                } else if (original == null) {
+                    unchanged = mPreferences.containsKey(key) && mPreferences.get(key) == null;
+                } else {
+                    unchanged = original.equals(mPreferences.get(key));
+                }
+                if (unchanged && !mChangedBefore.contains(key) && !mRemovedBefore.contains(key)) {
+                    mChangedKeys.remove(key);
+                    mRemovedKeys.remove(key);
+                }
+            }
+            if ((mChangedKeys.isEmpty() && mRemovedKeys.isEmpty()) || saveFast(PreferenceFile.this, fullPath, packageName, ctx, kill)) {
+                mSession = null;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Discard every edit, and end the session
+         */
+        public void rollback() {
+            if (mSession != this) {
+                return;
+            }
+            for (Entry<String, Object> entry : mOriginals.entrySet()) {
+                if (entry.getValue() == NONE) {
+                    mPreferences.remove(entry.getKey());
+                } else {
+                    mPreferences.put(entry.getKey(), entry.getValue());
+                }
+            }
+            mChangedKeys.clear();
+            mChangedKeys.addAll(mChangedBefore);
+            mRemovedKeys.clear();
+            mRemovedKeys.addAll(mRemovedBefore);
+            mSession = null;
+        }
+
+        private void remember(String key) {
+            if (!mOriginals.containsKey(key)) {
+                mOriginals.put(key, mPreferences.containsKey(key) ? mPreferences.get(key) : NONE);
+            }
+        }
+    }
 
     private PreferenceFile() {
         super();
-        mPreferences = new HashMap<String, Object>();
+        mPreferences = new PreferenceMap(PreferencesActivity.preferenceSortType);
     }
 
     @SuppressWarnings("unchecked")
@@ -56,12 +166,12 @@ public class PreferenceFile {
         }
 
         try {
-            InputStream in = new ByteArrayInputStream(xml.getBytes());
-            Map<String, Object> map = XmlUtils.readMapXml(in);
-            in.close();
+            XmlMapLayout layout = new XmlMapLayout();
+            Map<String, Object> map = readMapXml(xml, layout);
 
             if (map != null) {
-                preferenceFile.setPreferences(map);
+                preferenceFile.mPreferences.putAll(map);
+                preferenceFile.mLayout = layout;
                 return preferenceFile;
             }
         } catch (XmlPullParserException ignored) {
@@ -72,64 +182,195 @@ public class PreferenceFile {
         return preferenceFile;
     }
 
-    private void setPreferences(Map<String, Object> map) {
-        mPreferences = map;
-        mList = new ArrayList<Entry<String, Object>>(mPreferences.entrySet());
-        updateSort();
+    /**
+     * Parse the xml with {@link FastXmlParser}, and fall back to
+     * {@link XmlUtils} for the documents it does not support
+     */
+    public static Map<String, Object> readMapXml(String xml) throws XmlPullParserException, IOException {
+        return readMapXml(xml, null);
+    }
+
+    /**
+     * Same as {@link #readMapXml(String)}, recording the position of each
+     * value in the layout when one is given
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readMapXml(String xml, XmlMapLayout layout) throws XmlPullParserException, IOException {
+        try {
+            return layout == null ? FastXmlParser.readMapXml(xml) : FastXmlParser.readMapXml(xml, layout);
+        } catch (XmlPullParserException e) {
+            if (layout != null) {
+                layout.invalidate();
+            }
+            InputStream in = new ByteArrayInputStream(xml.getBytes());
+            try {
+                return XmlUtils.readMapXml(in);
+            } finally {
+                in.close();
+            }
+        }
     }
 
     private String toXml() {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            XmlUtils.writeMapXml(mPreferences, out);
+            XmlUtils.writeMapXml(mPreferences.asMap(), out);
         } catch (XmlPullParserException ignored) {
         } catch (IOException ignored) {
         }
         return out.toString();
     }
 
-    public List<Entry<String, Object>> getList() {
-        if (mList == null) {
-            mList = new ArrayList<Entry<String, Object>>();
+    /**
+     * Collect the following edits until they are committed or rolled back
+     *
+     * @return The session, the current one if already begun
+     */
+    public EditSession beginEdit() {
+        if (mSession == null) {
+            mSession = new EditSession();
         }
-        return mList;
+        return mSession;
     }
 
-    public void setList(List<Entry<String, Object>> mList) {
-        this.mList = mList;
-        this.mPreferences = new HashMap<String, Object>();
-        for (Entry<String, Object> entry : mList) {
-            mPreferences.put(entry.getKey(), entry.getValue());
-        }
+    /**
+     * @return The session collecting the edits, or null
+     */
+    public EditSession getEditSession() {
+        return mSession;
+    }
 
-        updateSort();
+    /**
+     * @return true if keys were edited since the file was last read or
+     * written, in a session or not, or if they are being written
+     */
+    public boolean hasUnsavedChanges() {
+        return mSession != null || !mChangedKeys.isEmpty() || !mRemovedKeys.isEmpty() || mPendingSaves > 0 || mSaveFailed;
     }
 
-    private void updateValue(String key, Object value) {
-        for (Entry<String, Object> entry : mList) {
-            if (entry.getKey().equals(key)) {
-                entry.setValue(value);
-                break;
+    /**
+     * @return A live view of the preferences, in the current sort order
+     */
+    public List<Entry<String, Object>> getList() {
+        return mPreferences.asList();
+    }
+
+    /**
+     * @return The key at this position of {@link #getList()}
+     */
+    public String getKey(int position) {
+        return mPreferences.getKey(position);
+    }
+
+    /**
+     * @return The type of the value at this position of {@link #getList()}
+     */
+    public PreferenceType getType(int position) {
+        return PreferenceType.fromTag(mPreferences.getType(position));
+    }
+
+    /**
+     * @return The value at this position of {@link #getList()} as text, or null
+     */
+    public String getValueText(int position) {
+        return mPreferences.getValueText(position);
+    }
+
+    /**
+     * @return A read-only view of the preferences, for lookups by key
+     */
+    public Map<String, Object> getMap() {
+        return mPreferences.asMap();
+    }
+
+    /**
+     * @return A counter changed by every modification of the list
+     */
+    public int getModCount() {
+        return mPreferences.getModCount();
+    }
+
+    /**
+     * Keep only the given entries
+     */
+    public void setList(List<Entry<String, Object>> list) {
+        Set<String> keys = new HashSet<String>(list.size());
+        for (Entry<String, Object> entry : list) {
+            keys.add(entry.getKey());
+            if (!mPreferences.containsKey(entry.getKey())) {
+                remember(entry.getKey());
+                mPreferences.put(entry.getKey(), entry.getValue());
+                markChanged(entry.getKey());
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (Entry<String, Object> entry : mPreferences.asList()) {
+            if (!keys.contains(entry.getKey())) {
+                removed.add(entry.getKey());
+            }
+        }
+        for (String key : removed) {
+            removeValue(key);
+        }
+    }
+
+    /**
+     * Take the content of the file read again from the disk. Only the keys
+     * which differ are updated, the other entries are kept as they are.
+     * Nothing is taken while there are unsaved changes, they are written
+     * over the file when saved, like the edits of a session.
+     *
+     * @return The keys updated
+     */
+    public List<PreferenceDiff.Change> merge(PreferenceFile file) {
+        if (hasUnsavedChanges()) {
+            return Collections.emptyList();
+        }
+        // The content read takes the place of a backup being restored
+        List<PreferenceDiff.Change> changes = PreferenceDiff.compute(file.getMap(), getMap());
+        for (PreferenceDiff.Change change : changes) {
+            if (change.getType() == PreferenceDiff.REMOVED) {
+                mPreferences.remove(change.getKey());
+            } else {
+                mPreferences.put(change.getKey(), change.getBackupValue());
             }
         }
+        mLayout = file.mLayout;
+        return changes;
+    }
+
+    private void updateValue(String key, Object value) {
+        remember(key);
         mPreferences.put(key, value);
-        updateSort();
+        markChanged(key);
     }
 
     public void removeValue(String key) {
+        remember(key);
         mPreferences.remove(key);
-        for (Entry<String, Object> entry : mList) {
-            if (entry.getKey().equals(key)) {
-                mList.remove(entry);
-                break;
-            }
-        }
+        markRemoved(key);
     }
 
     private void createAndAddValue(String key, Object value) {
-        mList.add(0, new AbstractMap.SimpleEntry<String, Object>(key, value));
+        remember(key);
         mPreferences.put(key, value);
-        updateSort();
+        markChanged(key);
+    }
+
+    private void remember(String key) {
+        if (mSession != null) {
+            mSession.remember(key);
+        }
+    }
+
+    private void markChanged(String key) {
+        mRemovedKeys.remove(key);
+        mChangedKeys.add(key);
+    }
+
+    private void markRemoved(String key) {
+        mChangedKeys.remove(key);
+        mRemovedKeys.add(key);
     }
 
     public void add(String previousKey, String newKey, Object value, boolean editMode) {
@@ -158,8 +399,93 @@ public class PreferenceFile {
         }
     }
 
-    public static boolean saveFast(PreferenceFile prefFile, String mFile, String packageName) {
-        return saveFast(prefFile.toXml(), mFile, packageName);
+    /**
+     * Save the preferences, writing again only the keys modified since the
+     * file was read or last saved when its layout is known
+     *
+     * @param prefFile    .
+     * @param mFile       .
+     * @param packageName .
+     * @param ctx         .
+     * @return .
+     */
+    public static boolean saveFast(PreferenceFile prefFile, String mFile, String packageName, Context ctx) {
+        return saveFast(prefFile, mFile, packageName, ctx, true);
+    }
+
+    /**
+     * Same as {@link #saveFast(PreferenceFile, String, String, Context)}
+     *
+     * @param kill Restart the application so it reads the new values
+     */
+    public static boolean saveFast(PreferenceFile prefFile, String mFile, String packageName, Context ctx, boolean kill) {
+        String preferences = prefFile.prepareSave();
+        if (preferences == null) {
+            return false;
+        }
+        boolean written = write(preferences, mFile, packageName, ctx, kill);
+        prefFile.onSaved(written);
+        return written;
+    }
+
+    /**
+     * Build the document to save, to be written by {@link #write} on another
+     * thread. The saves must be written in the order they are prepared: the
+     * layout of the document is kept right away, so the next save is
+     * spliced into it. {@link #onSaved(boolean)} must be called once written.
+     *
+     * @return The document, or null if it can not be saved
+     */
+    public String prepareSave() {
+        String preferences = splice();
+        if (preferences == null) {
+            // Full rewrite
+            preferences = toXml();
+        }
+        // The document must parse before it replaces the file, and the
+        // layout of the new document is recorded while checking it
+        XmlMapLayout layout = new XmlMapLayout();
+        try {
+            readMapXml(preferences, layout);
+        } catch (Exception e) {
+            mLayout = null;
+            return null;
+        }
+        mLayout = layout;
+        mChangedKeys.clear();
+        mRemovedKeys.clear();
+        mPendingSaves++;
+        return preferences;
+    }
+
+    /**
+     * @param written false if the document of {@link #prepareSave()} was not
+     *                written: the next save writes the whole file
+     */
+    public void onSaved(boolean written) {
+        mPendingSaves--;
+        if (!written) {
+            mLayout = null;
+        }
+        // Every document holds all the preferences, the last one written wins
+        mSaveFailed = !written;
+    }
+
+    /**
+     * @return The document with the modified keys spliced in, or null if it
+     * has to be written from scratch
+     */
+    private String splice() {
+        if (mLayout == null) {
+            return null;
+        }
+        try {
+            return mLayout.splice(mPreferences.asMap(), mChangedKeys, mRemovedKeys);
+        } catch (XmlPullParserException ignored) {
+        } catch (IOException ignored) {
+        }
+        mLayout = null;
+        return null;
     }
 
     /**
@@ -168,24 +494,31 @@ public class PreferenceFile {
      * @param preferences .
      * @param mFile       .
      * @param packageName .
+     * @param ctx         .
      * @return .
      */
-    public static boolean saveFast(String preferences, String mFile, String packageName) {
-        if (!isValid(preferences)) {
+    public static boolean saveFast(String preferences, String mFile, String packageName, Context ctx) {
+        return isValid(preferences) && write(preferences, mFile, packageName, ctx, true);
+    }
+
+    /**
+     * Write the document through a temporary file rather than as a quoted
+     * shell argument, then kill the package so it reads the new values. Not
+     * to be called on the main thread.
+     */
+    public static boolean write(String preferences, String mFile, String packageName, Context ctx, boolean kill) {
+        if (!Utils.writeFile(preferences, mFile, ctx)) {
             return false;
         }
-        try {
-            App.getRoot().file.write(mFile, preferences.replace("'", "'\"'\"'"), false);
-            App.getRoot().processes.kill(packageName);
-        } catch (Exception e) {
-            return false;
+        if (kill) {
+            Utils.killPackage(packageName);
         }
         return true;
     }
 
     private static boolean isValid(String xml) {
         try {
-            XmlUtils.readMapXml(new ByteArrayInputStream(xml.getBytes()));
+            readMapXml(xml);
         } catch (Exception e) {
             return false;
         }
@@ -197,7 +530,7 @@ public class PreferenceFile {
     }
 
     public void updateSort() {
-        Collections.sort(getList(), new PreferenceComparator(PreferencesActivity.preferenceSortType));
+        mPreferences.setSortType(PreferencesActivity.preferenceSortType);
     }
 
 }
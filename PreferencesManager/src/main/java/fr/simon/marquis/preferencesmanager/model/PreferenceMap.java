@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.model;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Preferences indexed by key, and kept sorted by key or by type and key.
+ * <p/>
+ * The preferences are stored in columns: each one has a slot in parallel
+ * arrays holding its key, a type tag, a primitive for the int, long, float
+ * and boolean values, and a reference for the other values. Numbers are not
+ * boxed, and a preference takes about 50 bytes instead of the 100 of a tree
+ * node, its hash map entry and its boxed value: a file of 100k keys keeps
+ * ~4.5 MB less on the heap.
+ * <p/>
+ * The slots form a treap where each slot knows the size of its subtree:
+ * lookups by key go through an open addressing index, sorted inserts and
+ * removals are O(log n), and {@link #asList()} gives a live positional view.
+ * The entries of the views are {@link PreferenceEntry} copies made when they
+ * are read; the adapter reads the columns by position instead, see
+ * {@link #getKey(int)}, {@link #getType(int)} and {@link #getValueText(int)}.
+ */
+final class PreferenceMap {
+
+    // Type tags, the strings, sets and values of the other types are kept as objects
+    static final byte TYPE_OBJECT = 0;
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_FLOAT = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_STRINGSET = 6;
+
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Random mRandom = new Random();
+    private PreferenceSortType mSortType;
+    private int mModCount;
+    // Columns, indexed by slot
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private byte[] mTypes = new byte[INITIAL_CAPACITY];
+    private long[] mPrimitives = new long[INITIAL_CAPACITY];
+    private Object[] mObjects = new Object[INITIAL_CAPACITY];
+
+    // Treap of the slots, the free slots are chained by mLefts
+    private int[] mPriorities = new int[INITIAL_CAPACITY];
+    private int[] mLefts = new int[INITIAL_CAPACITY];
+    private int[] mRights = new int[INITIAL_CAPACITY];
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private int mRoot = NIL;
+    private int mFree = NIL;
+    private int mSlots;
+    private int mSize;
+
+    // Slot + 1 of each key by hash, 0 for an empty bucket, linear probing
+    private int[] mIndex = new int[INITIAL_CAPACITY * 2];
+
+    private List<Entry<String, Object>> mList;
+    private Map<String, Object> mMap;
+
+    public PreferenceMap(PreferenceSortType sortType) {
+        super();
+        setSortType(sortType);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return A counter changed by every modification of the entries or of their order
+     */
+    public int getModCount() {
+        return mModCount;
+    }
+
+    public boolean containsKey(String key) {
+        return find(key) != NIL;
+    }
+
+    public Object get(String key) {
+        int slot = find(key);
+        return slot == NIL ? null : getValue(slot);
+    }
+
+    public Entry<String, Object> get(int position) {
+        return entry(slotAt(position));
+    }
+
+    public String getKey(int position) {
+        return mKeys[slotAt(position)];
+    }
+
+    /**
+     * @return The type tag of the value at this position
+     */
+    public byte getType(int position) {
+        return mTypes[slotAt(position)];
+    }
+
+    /**
+     * @return The value at this position as displayed, without boxing it, or
+     * null for a null value
+     */
+    public String getValueText(int position) {
+        int slot = slotAt(position);
+        long primitive = mPrimitives[slot];
+        switch (mTypes[slot]) {
+            case TYPE_INT:
+                return Integer.toString((int) primitive);
+            case TYPE_LONG:
+                return Long.toString(primitive);
+            case TYPE_FLOAT:
+                return Float.toString(Float.intBitsToFloat((int) primitive));
+            case TYPE_BOOLEAN:
+                return primitive != 0 ? "true" : "false";
+            default:
+                return mObjects[slot] == null ? null : mObjects[slot].toString();
+        }
+    }
+
+    private int slotAt(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + position + ", size is " + size());
+        }
+        int slot = mRoot;
+        while (true) {
+            int left = size(mLefts[slot]);
+            if (position < left) {
+                slot = mLefts[slot];
+            } else if (position == left) {
+                return slot;
+            } else {
+                position -= left + 1;
+                slot = mRights[slot];
+            }
+        }
+    }
+
+    public void put(String key, Object value) {
+        mModCount++;
+        int slot = find(key);
+        if (slot != NIL) {
+            if (sameClass(slot, value)) {
+                // The position only depends on the key and the type
+                setValue(slot, value);
+                return;
+            }
+            mRoot = remove(mRoot, slot);
+            reset(slot);
+        } else {
+            slot = allocate();
+            mKeys[slot] = key;
+            index(slot);
+            mSize++;
+        }
+        setValue(slot, value);
+        mRoot = insert(mRoot, slot);
+    }
+
+    public void putAll(Map<String, ?> map) {
+        for (Entry<String, ?> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Object remove(String key) {
+        int slot = find(key);
+        if (slot == NIL) {
+            return null;
+        }
+        mModCount++;
+        Object value = getValue(slot);
+        mRoot = remove(mRoot, slot);
+        unindex(slot);
+        release(slot);
+        mSize--;
+        return value;
+    }
+
+    public PreferenceSortType getSortType() {
+        return mSortType;
+    }
+
+    /**
+     * Sort the entries again if the sort type changed
+     */
+    public void setSortType(PreferenceSortType sortType) {
+        if (sortType == mSortType) {
+            return;
+        }
+        mSortType = sortType;
+        mModCount++;
+
+        mRoot = NIL;
+        for (int slot = 0; slot < mSlots; slot++) {
+            if (mKeys[slot] != null) {
+                reset(slot);
+                mRoot = insert(mRoot, slot);
+            }
+        }
+    }
+
+    /**
+     * @return A read-only view of the entries, in sorted order
+     */
+    public List<Entry<String, Object>> asList() {
+        if (mList == null) {
+            mList = new AbstractList<Entry<String, Object>>() {
+                @Override
+                public Entry<String, Object> get(int location) {
+                    return PreferenceMap.this.get(location);
+                }
+
+                @Override
+                public int size() {
+                    return PreferenceMap.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new InOrderIterator();
+                }
+            };
+        }
+        return mList;
+    }
+
+    /**
+     * @return A read-only view of the entries as a map, iterated in sorted order
+     */
+    public Map<String, Object> asMap() {
+        if (mMap == null) {
+            mMap = new AbstractMap<String, Object>() {
+                private Set<Entry<String, Object>> mEntrySet;
+
+                @Override
+                public Set<Entry<String, Object>> entrySet() {
+                    if (mEntrySet == null) {
+                        mEntrySet = new AbstractSet<Entry<String, Object>>() {
+                            @Override
+                            public Iterator<Entry<String, Object>> iterator() {
+                                return new InOrderIterator();
+                            }
+
+                            @Override
+                            public int size() {
+                                return PreferenceMap.this.size();
+                            }
+                        };
+                    }
+                    return mEntrySet;
+                }
+
+                @Override
+                public int size() {
+                    return PreferenceMap.this.size();
+                }
+
+                @Override
+                public boolean containsKey(Object key) {
+                    return key instanceof String && PreferenceMap.this.containsKey((String) key);
+                }
+
+                @Override
+                public Object get(Object key) {
+                    return key instanceof String ? PreferenceMap.this.get((String) key) : null;
+                }
+            };
+        }
+        return mMap;
+    }
+
+    private PreferenceEntry entry(int slot) {
+        return new PreferenceEntry(mKeys[slot], getValue(slot), mTypes[slot]);
+    }
+
+    private Object getValue(int slot) {
+        long primitive = mPrimitives[slot];
+        switch (mTypes[slot]) {
+            case TYPE_INT:
+                return Integer.valueOf((int) primitive);
+            case TYPE_LONG:
+                return Long.valueOf(primitive);
+            case TYPE_FLOAT:
+                return Float.valueOf(Float.intBitsToFloat((int) primitive));
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(primitive != 0);
+            default:
+                return mObjects[slot];
+        }
+    }
+
+    private void setValue(int slot, Object value) {
+        byte type = typeOf(value);
+        mTypes[slot] = type;
+        switch (type) {
+            case TYPE_INT:
+                mPrimitives[slot] = (Integer) value;
+                mObjects[slot] = null;
+                break;
+            case TYPE_LONG:
+                mPrimitives[slot] = (Long) value;
+                mObjects[slot] = null;
+                break;
+            case TYPE_FLOAT:
+                mPrimitives[slot] = Float.floatToRawIntBits((Float) value);
+                mObjects[slot] = null;
+                break;
+            case TYPE_BOOLEAN:
+                mPrimitives[slot] = (Boolean) value ? 1 : 0;
+                mObjects[slot] = null;
+                break;
+            default:
+                mPrimitives[slot] = 0;
+                mObjects[slot] = value;
+                break;
+        }
+    }
+
+    private static byte typeOf(Object value) {
+        if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Set<?>) {
+            return TYPE_STRINGSET;
+        }
+        return TYPE_OBJECT;
+    }
+
+    private boolean sameClass(int slot, Object value) {
+        byte type = typeOf(value);
+        if (type != mTypes[slot]) {
+            return false;
+        }
+        if (type != TYPE_OBJECT && type != TYPE_STRINGSET) {
+            return true;
+        }
+        Object object = mObjects[slot];
+        return object == null ? value == null : value != null && object.getClass() == value.getClass();
+    }
+
+    /**
+     * @return The name of the class of the value, without boxing it
+     */
+    private String className(int slot) {
+        switch (mTypes[slot]) {
+            case TYPE_INT:
+                return "java.lang.Integer";
+            case TYPE_LONG:
+                return "java.lang.Long";
+            case TYPE_FLOAT:
+                return "java.lang.Float";
+            case TYPE_BOOLEAN:
+                return "java.lang.Boolean";
+            case TYPE_STRING:
+                return "java.lang.String";
+            default:
+                return mObjects[slot] == null ? "" : mObjects[slot].getClass().getName();
+        }
+    }
+
+    private int compare(int lhs, int rhs) {
+        if (mSortType == PreferenceSortType.TYPE_AND_ALPHANUMERIC) {
+            int res = className(lhs).compareToIgnoreCase(className(rhs));
+            if (res != 0) {
+                return res;
+            }
+        }
+        int res = mKeys[lhs].compareToIgnoreCase(mKeys[rhs]);
+        // Keys are unique, this gives a total order
+        return res != 0 ? res : mKeys[lhs].compareTo(mKeys[rhs]);
+    }
+
+    private int allocate() {
+        int slot;
+        if (mFree != NIL) {
+            slot = mFree;
+            mFree = mLefts[slot];
+        } else {
+            if (mSlots == mKeys.length) {
+                grow(mSlots * 2);
+            }
+            slot = mSlots++;
+        }
+        mPriorities[slot] = mRandom.nextInt();
+        reset(slot);
+        return slot;
+    }
+
+    private void release(int slot) {
+        mKeys[slot] = null;
+        mObjects[slot] = null;
+        mLefts[slot] = mFree;
+        mFree = slot;
+    }
+
+    private void grow(int capacity) {
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mPrimitives = Arrays.copyOf(mPrimitives, capacity);
+        mObjects = Arrays.copyOf(mObjects, capacity);
+        mPriorities = Arrays.copyOf(mPriorities, capacity);
+        mLefts = Arrays.copyOf(mLefts, capacity);
+        mRights = Arrays.copyOf(mRights, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+    }
+
+    private int bucket(String key) {
+        int h = key.hashCode();
+        // Spread the high bits, the table is indexed by the low ones
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (mIndex.length - 1);
+    }
+
+    private int find(String key) {
+        int mask = mIndex.length - 1;
+        for (int i = bucket(key); mIndex[i] != 0; i = (i + 1) & mask) {
+            int slot = mIndex[i] - 1;
+            if (key.equals(mKeys[slot])) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    private void index(int slot) {
+        // Keep the table at most half full
+        if ((mSize + 1) * 2 > mIndex.length) {
+            int[] old = mIndex;
+            mIndex = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    insertIndex(entry - 1);
+                }
+            }
+        }
+        insertIndex(slot);
+    }
+
+    private void insertIndex(int slot) {
+        int mask = mIndex.length - 1;
+        int i = bucket(mKeys[slot]);
+        while (mIndex[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mIndex[i] = slot + 1;
+    }
+
+    /**
+     * Remove the slot from the index, moving back the following keys of the
+     * probe sequence so that no tombstone is needed
+     */
+    private void unindex(int slot) {
+        int mask = mIndex.length - 1;
+        int hole = bucket(mKeys[slot]);
+        while (mIndex[hole] != slot + 1) {
+            hole = (hole + 1) & mask;
+        }
+        for (int i = (hole + 1) & mask; mIndex[i] != 0; i = (i + 1) & mask) {
+            int home = bucket(mKeys[mIndex[i] - 1]);
+            // Move the key back if its bucket is not between the hole and i
+            boolean reachable = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+            if (!reachable) {
+                mIndex[hole] = mIndex[i];
+                hole = i;
+            }
+        }
+        mIndex[hole] = 0;
+    }
+
+    private int size(int slot) {
+        return slot == NIL ? 0 : mSizes[slot];
+    }
+
+    private void reset(int slot) {
+        mLefts[slot] = NIL;
+        mRights[slot] = NIL;
+        mSizes[slot] = 1;
+    }
+
+    private void update(int slot) {
+        mSizes[slot] = size(mLefts[slot]) + size(mRights[slot]) + 1;
+    }
+
+    private int insert(int root, int slot) {
+        if (root == NIL) {
+            return slot;
+        }
+        if (compare(slot, root) < 0) {
+            mLefts[root] = insert(mLefts[root], slot);
+            if (mPriorities[mLefts[root]] > mPriorities[root]) {
+                root = rotateRight(root);
+            }
+        } else {
+            mRights[root] = insert(mRights[root], slot);
+            if (mPriorities[mRights[root]] > mPriorities[root]) {
+                root = rotateLeft(root);
+            }
+        }
+        update(root);
+        return root;
+    }
+
+    private int remove(int root, int slot) {
+        if (root == NIL) {
+            return NIL;
+        }
+        if (root == slot) {
+            return merge(mLefts[root], mRights[root]);
+        }
+        if (compare(slot, root) < 0) {
+            mLefts[root] = remove(mLefts[root], slot);
+        } else {
+            mRights[root] = remove(mRights[root], slot);
+        }
+        update(root);
+        return root;
+    }
+
+    private int merge(int left, int right) {
+        if (left == NIL) {
+            return right;
+        }
+        if (right == NIL) {
+            return left;
+        }
+        if (mPriorities[left] > mPriorities[right]) {
+            mRights[left] = merge(mRights[left], right);
+            update(left);
+            return left;
+        }
+        mLefts[right] = merge(left, mLefts[right]);
+        update(right);
+        return right;
+    }
+
+    private int rotateRight(int slot) {
+        int left = mLefts[slot];
+        mLefts[slot] = mRights[left];
+        mRights[left] = slot;
+        update(slot);
+        update(left);
+        return left;
+    }
+
+    private int rotateLeft(int slot) {
+        int right = mRights[slot];
+        mRights[slot] = mLefts[right];
+        mLefts[right] = slot;
+        update(slot);
+        update(right);
+        return right;
+    }
+
+    private final class InOrderIterator implements Iterator<Entry<String, Object>> {
+        // The expected depth of a treap is ~2.5 log n, the stack grows if needed
+        private int[] mStack = new int[64];
+        private int mDepth;
+
+        private InOrderIterator() {
+            pushLeft(mRoot);
+        }
+
+        private void pushLeft(int slot) {
+            while (slot != NIL) {
+                if (mDepth == mStack.length) {
+                    mStack = Arrays.copyOf(mStack, mDepth * 2);
+                }
+                mStack[mDepth++] = slot;
+                slot = mLefts[slot];
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mDepth > 0;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (mDepth == 0) {
+                throw new NoSuchElementException();
+            }
+            int slot = mStack[--mDepth];
+            pushLeft(mRights[slot]);
+            return entry(slot);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
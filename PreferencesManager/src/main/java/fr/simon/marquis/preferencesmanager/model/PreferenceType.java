@@ -15,6 +15,7 @@
  */
 package fr.simon.marquis.preferencesmanager.model;
 
+import java.util.Map.Entry;
 import java.util.Set;
 
 import fr.simon.marquis.preferencesmanager.R;
@@ -59,6 +60,39 @@ public enum PreferenceType {
         return UNSUPPORTED;
     }
 
+    /**
+     * Same as {@link #fromObject(Object)}, the entries read from a
+     * {@link PreferenceMap} give their type without testing the value
+     */
+    public static PreferenceType fromEntry(Entry<String, Object> entry) {
+        if (entry instanceof PreferenceEntry) {
+            return fromTag(((PreferenceEntry) entry).getTag());
+        }
+        return fromObject(entry.getValue());
+    }
+
+    /**
+     * @param tag One of the type tags of {@link PreferenceMap}
+     */
+    static PreferenceType fromTag(byte tag) {
+        switch (tag) {
+            case PreferenceMap.TYPE_INT:
+                return INT;
+            case PreferenceMap.TYPE_LONG:
+                return LONG;
+            case PreferenceMap.TYPE_FLOAT:
+                return FLOAT;
+            case PreferenceMap.TYPE_BOOLEAN:
+                return BOOLEAN;
+            case PreferenceMap.TYPE_STRING:
+                return STRING;
+            case PreferenceMap.TYPE_STRINGSET:
+                return STRINGSET;
+            default:
+                return UNSUPPORTED;
+        }
+    }
+
     public static int getDialogLayout(Object obj) {
         return fromObject(obj).getCardBackground();
     }
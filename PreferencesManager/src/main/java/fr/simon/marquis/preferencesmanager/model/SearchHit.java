@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.model;
+
+/**
+ * A preference matching a global search: the app, the file and the key
+ */
+public class SearchHit implements Comparable<SearchHit> {
+
+    private final String packageName;
+    private final String fullPath;
+    private final String key;
+    private final String value;
+
+    public SearchHit(String packageName, String fullPath, String key, String value) {
+        super();
+        this.packageName = packageName;
+        this.fullPath = fullPath;
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getFullPath() {
+        return fullPath;
+    }
+
+    public String getFileName() {
+        return fullPath.substring(fullPath.lastIndexOf('/') + 1);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public int compareTo(SearchHit another) {
+        int res = packageName.compareTo(another.packageName);
+        if (res == 0) {
+            res = fullPath.compareTo(another.fullPath);
+        }
+        if (res == 0) {
+            res = key.compareTo(another.key);
+        }
+        return res;
+    }
+}
@@ -17,26 +17,16 @@ package fr.simon.marquis.preferencesmanager.ui;
 
 import android.app.Application;
 
-import com.spazedog.lib.rootfw.RootFW;
+import fr.simon.marquis.preferencesmanager.util.RootShellPool;
 
 public class App extends Application {
-    private static RootFW root;
+    // Enough to read a few files in parallel without flooding su
+    private static final int ROOT_SESSIONS = 3;
+    private static RootShellPool rootPool;
 
-    public static RootFW getRoot() {
-        if (root == null)
-            root = new RootFW();
-        return root;
-    }
-
-    public static RootFW getRootForce() {
-        if (root == null) {
-            return getRoot();
-        }
-
-        if (!root.connected()) {
-            root = new RootFW();
-        }
-
-        return root;
+    public static synchronized RootShellPool getRootPool() {
+        if (rootPool == null)
+            rootPool = new RootShellPool(ROOT_SESSIONS);
+        return rootPool;
     }
 }
@@ -16,7 +16,6 @@
 package fr.simon.marquis.preferencesmanager.ui;
 
 import android.content.Context;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -30,11 +29,13 @@ import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Locale;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.AppEntry;
+import fr.simon.marquis.preferencesmanager.util.FilterEngine;
+import fr.simon.marquis.preferencesmanager.util.IconLoader;
 import fr.simon.marquis.preferencesmanager.util.MyComparator;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 import se.emilsjolander.stickylistheaders.StickyListHeadersAdapter;
@@ -46,9 +47,17 @@ public class AppAdapter extends BaseAdapter implements StickyListHeadersAdapter,
     private final int color;
     private final View emptyView;
     private final Object mLock = new Object();
+    private final FilterEngine<AppEntry> mFilterEngine = new FilterEngine<AppEntry>() {
+        @Override
+        protected String[] getColumns(AppEntry item) {
+            return new String[]{item.getLabel()};
+        }
+    };
 
+    private volatile int mFilterGeneration;
+    private Filter mFilter;
     private Pattern pattern;
-    private ArrayList<AppEntry> applicationsToDisplay;
+    private List<AppEntry> applicationsToDisplay;
 
     public AppAdapter(Context ctx, ArrayList<AppEntry> applications, View emptyView) {
         this.context = ctx;
@@ -99,7 +108,7 @@ public class AppAdapter extends BaseAdapter implements StickyListHeadersAdapter,
 
         AppEntry item = applicationsToDisplay.get(position);
         holder.textView.setText(Ui.createSpannable(pattern, color, item.getLabel()));
-        holder.imageView.setImageDrawable(item.getIcon(context));
+        IconLoader.getInstance(context).loadIcon(item, holder.imageView);
 
         return convertView;
     }
@@ -137,11 +146,8 @@ public class AppAdapter extends BaseAdapter implements StickyListHeadersAdapter,
     }
 
     public void setFilter(String filter) {
-        if (TextUtils.isEmpty(filter)) {
-            pattern = null;
-        } else {
-            pattern = Pattern.compile(filter, Pattern.CASE_INSENSITIVE);
-        }
+        pattern = FilterEngine.compile(filter);
+        mFilterGeneration = mFilterEngine.newGeneration();
     }
 
     @Override
@@ -161,42 +167,33 @@ public class AppAdapter extends BaseAdapter implements StickyListHeadersAdapter,
 
     @Override
     public Filter getFilter() {
-        return new Filter() {
-            @Override
-            protected FilterResults performFiltering(CharSequence charSequence) {
-                FilterResults results = new FilterResults();
-                if (charSequence == null || charSequence.length() == 0) {
-                    synchronized (mLock) {
-                        results.values = applications;
-                        results.count = applications.size();
-                    }
-                } else {
-                    String prefixString = charSequence.toString().toLowerCase(Locale.getDefault()).trim();
-                    ArrayList<AppEntry> filterResultsData = new ArrayList<AppEntry>();
-                    synchronized (mLock) {
-                        for (AppEntry data : applications) {
-                            Pattern p = Pattern.compile(prefixString, Pattern.CASE_INSENSITIVE);
-                            if (p.matcher(data.getLabel().toLowerCase(Locale.getDefault()).trim()).find()) {
-                                filterResultsData.add(data);
-                            }
-                        }
-                    }
+        if (mFilter == null) {
+            mFilter = new Filter() {
+                @Override
+                protected FilterResults performFiltering(CharSequence charSequence) {
+                    FilterResults results = new FilterResults();
+                    List<AppEntry> data;
                     synchronized (mLock) {
-                        results.values = filterResultsData;
-                        results.count = filterResultsData.size();
+                        data = mFilterEngine.filter(applications, 0, charSequence, mFilterGeneration);
                     }
+                    results.values = data;
+                    results.count = data == null ? 0 : data.size();
+                    return results;
                 }
 
-                return results;
-            }
-
-            @SuppressWarnings("unchecked")
-            @Override
-            protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
-                applicationsToDisplay = (ArrayList<AppEntry>) filterResults.values;
-                notifyDataSetChanged();
-            }
-        };
+                @SuppressWarnings("unchecked")
+                @Override
+                protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
+                    if (filterResults.values == null) {
+                        // Cancelled by a newer query
+                        return;
+                    }
+                    applicationsToDisplay = (List<AppEntry>) filterResults.values;
+                    notifyDataSetChanged();
+                }
+            };
+        }
+        return mFilter;
     }
 
     @Override
@@ -20,22 +20,25 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.SearchView.OnQueryTextListener;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.Toast;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.AppEntry;
+import fr.simon.marquis.preferencesmanager.util.BackupArchive;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 import fr.simon.marquis.preferencesmanager.util.Utils;
 import se.emilsjolander.stickylistheaders.StickyListHeadersListView;
@@ -84,25 +87,32 @@ public class AppListActivity extends ActionBarActivity {
     }
 
     private void checkIfIsRoot() {
-        new Handler().post(new Runnable() {
+        withRoot(null);
+    }
+
+    /**
+     * Check the root access in the background, a shell may have to be
+     * started, then run the action if it is granted
+     */
+    private void withRoot(final Runnable action) {
+        new AsyncTask<Void, Void, Boolean>() {
             @Override
-            public void run() {
-                if (!App.getRoot().connected()) {
-                    Utils.displayNoRoot(getFragmentManager());
-                }
+            protected Boolean doInBackground(Void... params) {
+                return App.getRootPool().isConnected();
             }
-        });
-    }
 
-    private void checkIfIsRootForce() {
-        new Handler().post(new Runnable() {
             @Override
-            public void run() {
-                if (!App.getRootForce().connected()) {
+            protected void onPostExecute(Boolean connected) {
+                if (isFinishing()) {
+                    return;
+                }
+                if (!connected) {
                     Utils.displayNoRoot(getFragmentManager());
+                } else if (action != null) {
+                    action.run();
                 }
             }
-        });
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     /**
@@ -110,15 +120,16 @@ public class AppListActivity extends ActionBarActivity {
      *
      * @param app to browse
      */
-    private void startPreferencesActivity(AppEntry app) {
-        if (!App.getRoot().connected()) {
-            checkIfIsRootForce();
-        } else {
-            Intent i = new Intent(AppListActivity.this, PreferencesActivity.class);
-            i.putExtra(PreferencesActivity.EXTRA_TITLE, app.getLabel());
-            i.putExtra(PreferencesActivity.EXTRA_PACKAGE_NAME, app.getApplicationInfo().packageName);
-            startActivityForResult(i, REQUEST_CODE_PREFERENCES_ACTIVITY);
-        }
+    private void startPreferencesActivity(final AppEntry app) {
+        withRoot(new Runnable() {
+            @Override
+            public void run() {
+                Intent i = new Intent(AppListActivity.this, PreferencesActivity.class);
+                i.putExtra(PreferencesActivity.EXTRA_TITLE, app.getLabel());
+                i.putExtra(PreferencesActivity.EXTRA_PACKAGE_NAME, app.getPackageName());
+                startActivityForResult(i, REQUEST_CODE_PREFERENCES_ACTIVITY);
+            }
+        });
     }
 
     /**
@@ -143,8 +154,15 @@ public class AppListActivity extends ActionBarActivity {
      * @param apps List of applications
      */
     private void updateListView(ArrayList<AppEntry> apps) {
+        int position = mAdapter == null ? 0 : listView.getFirstVisiblePosition();
         mAdapter = new AppAdapter(this, apps, emptyView);
         listView.setAdapter(mAdapter);
+        if (position > 0) {
+            listView.setSelection(Math.min(position, apps.size() - 1));
+        }
+        if (mSearchView != null) {
+            updateFilter(mSearchView.getQuery().toString());
+        }
         setListState(false);
     }
 
@@ -221,6 +239,28 @@ public class AppListActivity extends ActionBarActivity {
             case R.id.show_popup:
                 AboutDialog.show(getFragmentManager(), false);
                 break;
+            case R.id.action_search_everywhere:
+                SearchDialog.show(getFragmentManager());
+                break;
+            case R.id.action_backup_all:
+                withRoot(new Runnable() {
+                    @Override
+                    public void run() {
+                        BulkBackupDialog.show(getFragmentManager());
+                    }
+                });
+                break;
+            case R.id.action_export_backups:
+                exportBackups();
+                break;
+            case R.id.action_import_backups:
+                withRoot(new Runnable() {
+                    @Override
+                    public void run() {
+                        ImportDialog.show(getFragmentManager());
+                    }
+                });
+                break;
             case R.id.show_system_apps:
                 Utils.setShowSystemApps(this, !Utils.isShowSystemApps(this));
                 if (!startTask()) {
@@ -232,6 +272,33 @@ public class AppListActivity extends ActionBarActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Write every backup to an archive of the external storage
+     */
+    private void exportBackups() {
+        final Context ctx = getApplicationContext();
+        new AsyncTask<Void, Void, java.io.File>() {
+            @Override
+            protected java.io.File doInBackground(Void... params) {
+                try {
+                    return BackupArchive.export(ctx);
+                } catch (IOException e) {
+                    Log.e(Utils.TAG, "Can not export the backups", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(java.io.File file) {
+                if (file == null) {
+                    Toast.makeText(ctx, R.string.export_fail, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(ctx, ctx.getString(R.string.export_done, file.getPath()), Toast.LENGTH_LONG).show();
+                }
+            }
+        }.execute();
+    }
+
     private boolean updateFilter(String s) {
         String filter = !TextUtils.isEmpty(s) ? s.trim() : null;
         if (mAdapter == null) {
@@ -252,8 +319,9 @@ public class AppListActivity extends ActionBarActivity {
         }
     }
 
-    public class GetApplicationsTask extends AsyncTask<Void, Void, ArrayList<AppEntry>> {
+    public class GetApplicationsTask extends AsyncTask<Void, ArrayList<AppEntry>, ArrayList<AppEntry>> {
         private final Context mContext;
+        private ArrayList<AppEntry> mCached;
 
         public GetApplicationsTask(Context ctx) {
             this.mContext = ctx;
@@ -265,15 +333,32 @@ public class AppListActivity extends ActionBarActivity {
             super.onPreExecute();
         }
 
+        @SuppressWarnings("unchecked")
         @Override
         protected ArrayList<AppEntry> doInBackground(Void... params) {
+            if (Utils.getPreviousApps() == null) {
+                // Display the list of the last run while PackageManager is queried
+                ArrayList<AppEntry> cached = Utils.getCachedApplications(mContext);
+                if (cached != null && !cached.isEmpty()) {
+                    publishProgress(cached);
+                }
+            }
             return Utils.getApplications(mContext);
         }
 
+        @Override
+        protected void onProgressUpdate(ArrayList<AppEntry>... values) {
+            mCached = values[0];
+            updateListView(mCached);
+        }
+
         @Override
         protected void onPostExecute(ArrayList<AppEntry> result) {
             super.onPostExecute(result);
-            updateListView(result);
+            // Entries are reused, equal lists mean nothing changed
+            if (!result.equals(mCached)) {
+                updateListView(result);
+            }
             finishTask();
         }
 
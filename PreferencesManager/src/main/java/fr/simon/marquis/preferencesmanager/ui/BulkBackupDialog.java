@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.ui;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.FragmentManager;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import fr.simon.marquis.preferencesmanager.R;
+import fr.simon.marquis.preferencesmanager.util.BulkBackup;
+
+/**
+ * Backup the preference files of every app, with the progress of the backup
+ */
+public class BulkBackupDialog extends DialogFragment implements View.OnClickListener, BulkBackup.OnProgressListener {
+
+    private final static String TAG = "BulkBackupDialog";
+
+    private BulkBackup mBackup;
+    private TextView mStatus;
+    private ProgressBar mProgress;
+    private CheckBox mFavoritesOnly;
+    private Button mAction;
+
+    public static void show(FragmentManager fm) {
+        if (fm.findFragmentByTag(TAG) == null) {
+            new BulkBackupDialog().show(fm, TAG);
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mBackup = BulkBackup.getInstance(getActivity());
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        if (getActivity() == null) {
+            return null;
+        }
+        View view = LayoutInflater.from(getActivity()).inflate(R.layout.dialog_bulk_backup, null);
+        assert view != null;
+        mStatus = (TextView) view.findViewById(R.id.status);
+        mProgress = (ProgressBar) view.findViewById(R.id.progress);
+        mFavoritesOnly = (CheckBox) view.findViewById(R.id.favorites_only);
+        mAction = (Button) view.findViewById(R.id.action);
+        mAction.setOnClickListener(this);
+        return view;
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        Dialog dialog = super.onCreateDialog(savedInstanceState);
+        dialog.setTitle(R.string.action_backup_all);
+        return dialog;
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mBackup.addListener(this);
+        updateStatus(mBackup.isRunning(), mBackup.getDone(), mBackup.getTotal(), mBackup.getFailed());
+    }
+
+    @Override
+    public void onStop() {
+        mBackup.removeListener(this);
+        super.onStop();
+    }
+
+    @Override
+    public void onClick(View v) {
+        if (mBackup.isRunning()) {
+            mBackup.cancel();
+        } else {
+            mBackup.start(mFavoritesOnly.isChecked());
+        }
+    }
+
+    private void updateStatus(boolean running, int done, int total, int failed) {
+        boolean interrupted = mBackup.isInterrupted();
+        if (running) {
+            mStatus.setText(getString(R.string.bulk_backup_running, done, total, failed));
+        } else if (interrupted) {
+            mStatus.setText(R.string.bulk_backup_interrupted);
+        } else if (total > 0) {
+            mStatus.setText(getString(R.string.bulk_backup_done, done, failed));
+        } else {
+            mStatus.setText(R.string.bulk_backup_idle);
+        }
+        // The total grows while the files are searched
+        mProgress.setMax(Math.max(total, 1));
+        mProgress.setProgress(done + failed);
+        mFavoritesOnly.setEnabled(!running && !interrupted);
+        mAction.setText(running ? R.string.bulk_backup_stop : interrupted ? R.string.bulk_backup_resume : R.string.bulk_backup_start);
+    }
+
+    @Override
+    public void onProgress(final boolean running, final int done, final int total, final int failed) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isAdded()) {
+                    updateStatus(running, done, total, failed);
+                }
+            }
+        });
+    }
+}
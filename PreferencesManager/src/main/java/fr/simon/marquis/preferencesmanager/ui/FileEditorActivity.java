@@ -26,10 +26,8 @@ import android.preference.PreferenceManager;
 import android.support.v7.app.ActionBarActivity;
 import android.text.Editable;
 import android.text.Html;
-import android.text.Spannable;
 import android.text.Spanned;
 import android.text.TextWatcher;
-import android.text.style.ForegroundColorSpan;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,17 +36,15 @@ import android.widget.Toast;
 
 import com.spazedog.lib.rootfw.container.Data;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
 import fr.simon.marquis.preferencesmanager.model.XmlColorTheme;
-import fr.simon.marquis.preferencesmanager.model.XmlColorTheme.ColorTagEnum;
 import fr.simon.marquis.preferencesmanager.model.XmlColorTheme.ColorThemeEnum;
 import fr.simon.marquis.preferencesmanager.model.XmlFontSize;
+import fr.simon.marquis.preferencesmanager.util.IconLoader;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 import fr.simon.marquis.preferencesmanager.util.Utils;
+import fr.simon.marquis.preferencesmanager.util.XmlHighlighter;
 
 public class FileEditorActivity extends ActionBarActivity implements TextWatcher {
 
@@ -68,15 +64,7 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
     private boolean mHasContentChanged;
     private boolean mNeedUpdateOnActivityFinish = false;
 
-    private final Pattern TAG_START = Pattern.compile("</?[-\\w\\?]+", Pattern.CASE_INSENSITIVE);
-    private final Pattern TAG_END = Pattern.compile("\\??/?>");
-    private final Pattern TAG_ATTRIBUTE_NAME = Pattern.compile("\\s(\\w*)\\=");
-    private final Pattern TAG_ATTRIBUTE_VALUE = Pattern.compile("[a-z\\-]*\\=(\"[^\"]*\")");
-    private final Pattern TAG_ATTRIBUTE_VALUE_2 = Pattern.compile("[a-z\\-]*\\=(\'[^\']*\')");
-    private final Pattern COMMENT_START = Pattern.compile("<!--");
-    private final Pattern COMMENT_END = Pattern.compile("-->");
-    // private final Pattern CDATA_START = Pattern.compile("<\\[CDATA\\[");
-    // private final Pattern CDATA_END = Pattern.compile("\\]\\]>");
+    private XmlHighlighter mHighlighter;
 
     @Override
     protected void onCreate(Bundle arg0) {
@@ -98,10 +86,12 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
         mFullPath = b.getString(PreferencesFragment.ARG_PATH) + "/" + mName;
         mPackageName = b.getString(PreferencesFragment.ARG_PACKAGE_NAME);
 
-        Drawable drawable = Utils.findDrawable(mPackageName, this);
-        if (drawable != null) {
-            getSupportActionBar().setIcon(drawable);
-        }
+        Utils.loadDrawable(mPackageName, this, new IconLoader.OnIconLoadedListener() {
+            @Override
+            public void onIconLoaded(Drawable icon) {
+                getSupportActionBar().setIcon(icon);
+            }
+        });
 
         mEditText = (EditText) findViewById(R.id.editText);
         //Hack to prevent EditText to request focus when the Activity is created
@@ -115,7 +105,7 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
 
 
         if (arg0 == null) {
-            Data data = App.getRoot().file.read(mFullPath);
+            Data data = App.getRootPool().read(mFullPath);
             mEditText.setText(data == null ? null : data.toString());
             mColorTheme = ColorThemeEnum.valueOf(PreferenceManager.getDefaultSharedPreferences(this).getString(KEY_COLOR_THEME, ColorThemeEnum.ECLIPSE.name()));
             setXmlFontSize(XmlFontSize.generateSize(PreferenceManager.getDefaultSharedPreferences(this).getInt(KEY_FONT_SIZE, XmlFontSize.MEDIUM.getSize())));
@@ -129,24 +119,26 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
             setXmlFontSize(XmlFontSize.generateSize(arg0.getInt(KEY_FONT_SIZE)));
         }
         mXmlColorTheme = XmlColorTheme.createTheme(getResources(), mColorTheme);
+        mHighlighter = new XmlHighlighter(mEditText);
+        mHighlighter.setTheme(mXmlColorTheme);
 
         updateTitle();
         invalidateOptionsMenu();
 
-        highlightXMLText(mEditText.getText());
-
         mEditText.clearFocus();
     }
 
     @Override
     protected void onResume() {
         mEditText.addTextChangedListener(this);
+        mHighlighter.start();
         super.onResume();
     }
 
     @Override
     protected void onPause() {
         mEditText.removeTextChangedListener(this);
+        mHighlighter.stop();
         super.onPause();
     }
 
@@ -289,7 +281,7 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
             mColorTheme = theme;
             mXmlColorTheme = XmlColorTheme.createTheme(getResources(), mColorTheme);
             invalidateOptionsMenu();
-            highlightXMLText(mEditText.getText());
+            mHighlighter.setTheme(mXmlColorTheme);
 
             PreferenceManager.getDefaultSharedPreferences(this).edit().putString(KEY_COLOR_THEME, mColorTheme.name()).commit();
         }
@@ -298,7 +290,7 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
     private boolean save() {
         Editable editable = mEditText.getText();
         String preferences = editable == null ? "" : editable.toString();
-        if (PreferenceFile.saveFast(preferences, mFullPath, mPackageName)) {
+        if (PreferenceFile.saveFast(preferences, mFullPath, mPackageName, this)) {
             mNeedUpdateOnActivityFinish = true;
             setResult(RESULT_OK);
             Toast.makeText(this, R.string.save_success, Toast.LENGTH_SHORT).show();
@@ -321,37 +313,6 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
         }
     }
 
-    private void clearSpans(Spannable source) {
-        Object[] toRemoveSpans = source.getSpans(0, source.length(), ForegroundColorSpan.class);
-        for (Object toRemoveSpan : toRemoveSpans) {
-            source.removeSpan(toRemoveSpan);
-        }
-    }
-
-    private void highlightXMLText(Spannable source) {
-        clearSpans(source);
-        generateSpan(source, TAG_START, mXmlColorTheme.getColor(ColorTagEnum.TAG));
-        generateSpan(source, TAG_END, mXmlColorTheme.getColor(ColorTagEnum.TAG));
-        generateSpan(source, TAG_ATTRIBUTE_VALUE, mXmlColorTheme.getColor(ColorTagEnum.ATTR_VALUE));
-        generateSpan(source, TAG_ATTRIBUTE_VALUE_2, mXmlColorTheme.getColor(ColorTagEnum.ATTR_VALUE));
-        generateSpan(source, TAG_ATTRIBUTE_NAME, mXmlColorTheme.getColor(ColorTagEnum.ATTR_NAME));
-        generateSpan(source, COMMENT_START, mXmlColorTheme.getColor(ColorTagEnum.COMMENT));
-        generateSpan(source, COMMENT_END, mXmlColorTheme.getColor(ColorTagEnum.COMMENT));
-    }
-
-    private static void generateSpan(Spannable source, Pattern p, int color) {
-        final Matcher matcher = p.matcher(source);
-        int start;
-        int end;
-        while (matcher.find()) {
-            start = matcher.start();
-            end = matcher.end();
-            if (start != end) {
-                source.setSpan(new ForegroundColorSpan(color), matcher.start(), matcher.end(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-        }
-    }
-
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
     }
@@ -367,7 +328,6 @@ public class FileEditorActivity extends ActionBarActivity implements TextWatcher
             updateTitle();
             invalidateOptionsMenu();
         }
-        highlightXMLText(mEditText.getText());
     }
 
     private void showSavePopup() {
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.ui;
+
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import fr.simon.marquis.preferencesmanager.R;
+import fr.simon.marquis.preferencesmanager.model.Backup;
+import fr.simon.marquis.preferencesmanager.util.BackupArchive;
+import fr.simon.marquis.preferencesmanager.util.Utils;
+
+/**
+ * Restore backups of the most recent archive of the external storage
+ */
+public class ImportDialog extends DialogFragment implements View.OnClickListener {
+
+    private final static String TAG = "ImportDialog";
+
+    private TextView mStatus;
+    private ListView mListView;
+    private Button mAction;
+    private File mArchive;
+    private List<BackupArchive.Entry> mEntries;
+
+    public static void show(FragmentManager fm) {
+        if (fm.findFragmentByTag(TAG) == null) {
+            new ImportDialog().show(fm, TAG);
+        }
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        if (getActivity() == null) {
+            return null;
+        }
+        View view = LayoutInflater.from(getActivity()).inflate(R.layout.dialog_import, null);
+        assert view != null;
+        mStatus = (TextView) view.findViewById(R.id.status);
+        mListView = (ListView) view.findViewById(R.id.listView);
+        mAction = (Button) view.findViewById(R.id.action);
+        mAction.setOnClickListener(this);
+        return view;
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        Dialog dialog = super.onCreateDialog(savedInstanceState);
+        dialog.setTitle(R.string.action_import_backups);
+        return dialog;
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (mEntries != null) {
+            return;
+        }
+        mArchive = BackupArchive.getLatest();
+        if (mArchive == null) {
+            mStatus.setText(getString(R.string.import_none, BackupArchive.getDirectory().getPath()));
+            return;
+        }
+        mStatus.setText(getString(R.string.import_loading, mArchive.getName()));
+        new AsyncTask<Void, Void, List<BackupArchive.Entry>>() {
+            @Override
+            protected List<BackupArchive.Entry> doInBackground(Void... params) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(mArchive));
+                    return BackupArchive.list(in);
+                } catch (IOException e) {
+                    Log.e(Utils.TAG, "Can not read the archive " + mArchive, e);
+                    return null;
+                } finally {
+                    close(in);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(List<BackupArchive.Entry> entries) {
+                if (isAdded()) {
+                    setEntries(entries);
+                }
+            }
+        }.execute();
+    }
+
+    private void setEntries(List<BackupArchive.Entry> entries) {
+        if (entries == null) {
+            mStatus.setText(getString(R.string.import_fail, mArchive.getName()));
+            return;
+        }
+        mEntries = entries;
+        mStatus.setText(getString(R.string.import_entries, entries.size(), mArchive.getName()));
+        List<String> labels = new ArrayList<String>(entries.size());
+        for (BackupArchive.Entry entry : entries) {
+            String path = entry.getPath();
+            labels.add(entry.getPackageName() + ": " + path.substring(path.lastIndexOf('/') + 1) + "\n" + new Backup(entry.getTime()).getDisplayLabel(getActivity()));
+        }
+        mListView.setAdapter(new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_multiple_choice, labels));
+        mAction.setEnabled(!entries.isEmpty());
+    }
+
+    @Override
+    public void onClick(View v) {
+        final Set<BackupArchive.Entry> selected = new HashSet<BackupArchive.Entry>();
+        SparseBooleanArray checked = mListView.getCheckedItemPositions();
+        for (int i = 0; checked != null && i < checked.size(); i++) {
+            if (checked.valueAt(i)) {
+                selected.add(mEntries.get(checked.keyAt(i)));
+            }
+        }
+        if (selected.isEmpty()) {
+            return;
+        }
+
+        final Context ctx = getActivity().getApplicationContext();
+        final File archive = mArchive;
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                InputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(archive));
+                    return BackupArchive.restore(ctx, in, selected);
+                } catch (IOException e) {
+                    Log.e(Utils.TAG, "Can not read the archive " + archive, e);
+                    return null;
+                } finally {
+                    close(in);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Integer count) {
+                if (count == null) {
+                    Toast.makeText(ctx, ctx.getString(R.string.import_fail, archive.getName()), Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(ctx, ctx.getString(R.string.import_done, count), Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+        dismiss();
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package fr.simon.marquis.preferencesmanager.ui;
 
 import android.content.Context;
-import android.text.TextUtils;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,13 +29,14 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
 
 import fr.simon.marquis.preferencesmanager.R;
+import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
 import fr.simon.marquis.preferencesmanager.model.PreferenceType;
+import fr.simon.marquis.preferencesmanager.util.FilterEngine;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 
 public class PreferenceAdapter extends BaseAdapter implements Filterable {
@@ -46,7 +46,20 @@ public class PreferenceAdapter extends BaseAdapter implements Filterable {
     private final int color;
     private final Object mLock = new Object();
     private final Map<Entry<String, Object>, Boolean> mCheckedPositions;
+    private final FilterEngine<Entry<String, Object>> mFilterEngine = new FilterEngine<Entry<String, Object>>() {
+        @Override
+        protected String[] getColumns(Entry<String, Object> item) {
+            return new String[]{item.getKey(), item.getValue() == null ? null : item.getValue().toString()};
+        }
+    };
+    private volatile int mFilterGeneration;
+    // Copy of the list taken on the main thread, the only one read by the
+    // filter thread while the main thread edits the preferences
+    private volatile List<Entry<String, Object>> mSnapshot;
+    private int mSnapshotVersion;
+    private Filter mFilter;
     private Pattern pattern;
+    private String mFilterText;
     private List<Entry<String, Object>> mListToDisplay;
 
     public PreferenceAdapter(Context ctx, PreferencesFragment f) {
@@ -88,11 +101,25 @@ public class PreferenceAdapter extends BaseAdapter implements Filterable {
             holder = (ViewHolder) convertView.getTag();
         }
 
-        Entry<String, Object> item = mListToDisplay.get(position);
-        Boolean checked = mCheckedPositions.get(item);
-        holder.background.setBackgroundResource(PreferenceType.getDialogLayout(item.getValue()));
-        holder.name.setText(Ui.createSpannable(pattern, color, item.getKey()));
-        holder.value.setText((item.getValue() == null ? null : Ui.createSpannable(pattern, color, item.getValue().toString())));
+        PreferenceFile preferenceFile = mPreferencesFragment.preferenceFile;
+        PreferenceType type;
+        String key;
+        String value;
+        if (mListToDisplay == preferenceFile.getList()) {
+            // Read the columns of the map, without an entry per row
+            type = preferenceFile.getType(position);
+            key = preferenceFile.getKey(position);
+            value = preferenceFile.getValueText(position);
+        } else {
+            Entry<String, Object> item = mListToDisplay.get(position);
+            type = PreferenceType.fromEntry(item);
+            key = item.getKey();
+            value = item.getValue() == null ? null : item.getValue().toString();
+        }
+        Boolean checked = mCheckedPositions.isEmpty() ? null : mCheckedPositions.get(mListToDisplay.get(position));
+        holder.background.setBackgroundResource(type.getCardBackground());
+        holder.name.setText(Ui.createSpannable(pattern, color, key));
+        holder.value.setText((value == null ? null : Ui.createSpannable(pattern, color, value)));
         holder.selector.setBackgroundResource((checked != null && checked) ? R.drawable.abc_list_pressed_holo_light : R.drawable.abc_list_selector_holo_light);
 
         return convertView;
@@ -106,47 +133,69 @@ public class PreferenceAdapter extends BaseAdapter implements Filterable {
     }
 
     public void setFilter(String filter) {
-        pattern = TextUtils.isEmpty(filter) ? null : Pattern.compile(filter, Pattern.CASE_INSENSITIVE);
+        mFilterText = filter;
+        pattern = FilterEngine.compile(filter);
+        mFilterGeneration = mFilterEngine.newGeneration();
+        snapshot();
+    }
+
+    /**
+     * Copy the list for the next filter pass, unless it did not change
+     */
+    private void snapshot() {
+        PreferenceFile preferenceFile = mPreferencesFragment.preferenceFile;
+        if (mSnapshot == null || mSnapshotVersion != preferenceFile.getModCount()) {
+            mSnapshot = new ArrayList<Entry<String, Object>>(preferenceFile.getList());
+            mSnapshotVersion = preferenceFile.getModCount();
+        }
     }
 
     @Override
     public Filter getFilter() {
-        return new Filter() {
-            @Override
-            protected FilterResults performFiltering(CharSequence charSequence) {
-                FilterResults results = new FilterResults();
-                if (charSequence == null || charSequence.length() == 0) {
-                    synchronized (mLock) {
-                        results.values = mPreferencesFragment.preferenceFile.getList();
-                        results.count = mPreferencesFragment.preferenceFile.getList().size();
-                    }
-                } else {
-                    String prefixString = charSequence.toString().toLowerCase(Locale.getDefault()).trim();
-                    ArrayList<Entry<String, Object>> filterResultsData = new ArrayList<Entry<String, Object>>();
-                    synchronized (mLock) {
-                        for (Entry<String, Object> data : mPreferencesFragment.preferenceFile.getList()) {
-                            Pattern p = Pattern.compile(prefixString, Pattern.CASE_INSENSITIVE);
-                            if (p.matcher(data.getKey().toLowerCase(Locale.getDefault()).trim()).find() || (data.getValue() != null && p.matcher(data.getValue().toString().toLowerCase(Locale.getDefault()).trim()).find())) {
-                                filterResultsData.add(data);
-                            }
-                        }
-                    }
+        if (mFilter == null) {
+            mFilter = new Filter() {
+                @Override
+                protected FilterResults performFiltering(CharSequence charSequence) {
+                    FilterResults results = new FilterResults();
+                    List<Entry<String, Object>> source = mSnapshot;
+                    List<Entry<String, Object>> data;
                     synchronized (mLock) {
-                        results.values = filterResultsData;
-                        results.count = filterResultsData.size();
+                        // A new snapshot is a new list, the version is not needed
+                        data = mFilterEngine.filter(source, 0, charSequence, mFilterGeneration);
                     }
+                    // Not filtered, the live list is displayed instead of the copy
+                    results.values = data == source ? mPreferencesFragment.preferenceFile.getList() : data;
+                    results.count = data == null ? 0 : data.size();
+                    return results;
                 }
 
-                return results;
-            }
+                @SuppressWarnings("unchecked")
+                @Override
+                protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
+                    if (filterResults.values == null) {
+                        // Cancelled by a newer query
+                        return;
+                    }
+                    mListToDisplay = (List<Entry<String, Object>>) filterResults.values;
+                    notifyDataSetChanged();
+                }
+            };
+        }
+        return mFilter;
+    }
 
-            @SuppressWarnings("unchecked")
-            @Override
-            protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
-                mListToDisplay = (List<Entry<String, Object>>) filterResults.values;
-                notifyDataSetChanged();
-            }
-        };
+    /**
+     * Display the entries again after some of them changed, filtering them
+     * again if needed
+     */
+    public void refresh() {
+        if (mFilterText == null) {
+            notifyDataSetChanged();
+        } else {
+            mFilterGeneration = mFilterEngine.newGeneration();
+            snapshot();
+            getFilter().filter(mFilterText);
+        }
     }
 
     public void resetSelection() {
@@ -168,7 +217,7 @@ public class PreferenceAdapter extends BaseAdapter implements Filterable {
             }
         }
         mPreferencesFragment.preferenceFile.setList(temp);
-        mListToDisplay = temp;
+        mListToDisplay = mPreferencesFragment.preferenceFile.getList();
     }
 
     public void setSelection(SparseBooleanArray checkedItemPositions) {
@@ -18,6 +18,7 @@ package fr.simon.marquis.preferencesmanager.ui;
 import android.app.ActionBar;
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -34,19 +35,22 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.Toast;
 
-import com.spazedog.lib.rootfw.container.Data;
-
 import org.json.JSONArray;
 
-import java.util.Date;
 import java.util.List;
 
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.Backup;
 import fr.simon.marquis.preferencesmanager.model.BackupContainer;
+import fr.simon.marquis.preferencesmanager.model.File;
 import fr.simon.marquis.preferencesmanager.model.Files;
 import fr.simon.marquis.preferencesmanager.model.PreferenceSortType;
 import fr.simon.marquis.preferencesmanager.ui.PreferencesFragment.OnPreferenceFragmentInteractionListener;
+import fr.simon.marquis.preferencesmanager.util.BackupIndex;
+import fr.simon.marquis.preferencesmanager.util.BackupStore;
+import fr.simon.marquis.preferencesmanager.util.FileDiscovery;
+import fr.simon.marquis.preferencesmanager.util.IconLoader;
+import fr.simon.marquis.preferencesmanager.util.PreferencePrefetcher;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 import fr.simon.marquis.preferencesmanager.util.Utils;
 
@@ -96,17 +100,26 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
         mViewPager = (ViewPager) findViewById(R.id.pager);
         mLoadingView = findViewById(R.id.loadingView);
         mEmptyView = findViewById(R.id.emptyView);
+        mViewPager.setOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                PreferencePrefetcher.getInstance().setCurrent(position);
+            }
+        });
 
         packageName = b.getString(EXTRA_PACKAGE_NAME);
         title = b.getString(EXTRA_TITLE);
         launchedFromShortcut = b.getBoolean(EXTRA_SHORTCUT, false);
+        PreferencePrefetcher.getInstance().start(packageName);
 
         getActionBar().setTitle(Ui.applyCustomTypeFace(title, this));
         getActionBar().setSubtitle(Ui.applyCustomTypeFace(packageName, this));
-        Drawable drawable = Utils.findDrawable(packageName, this);
-        if (drawable != null) {
-            getActionBar().setIcon(drawable);
-        }
+        Utils.loadDrawable(packageName, this, new IconLoader.OnIconLoadedListener() {
+            @Override
+            public void onIconLoaded(Drawable icon) {
+                getActionBar().setIcon(icon);
+            }
+        });
 
         if (savedInstanceState == null) {
             findFilesAndBackupsTask = new FindFilesAndBackupsTask(packageName);
@@ -190,17 +203,34 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
     }
 
     @Override
-    public void onBackupFile(String fullPath) {
-        Backup backup = new Backup(new Date().getTime());
-        backupContainer.put(fullPath, backup);
-
-        Data data = App.getRoot().file.read(fullPath);
-        if (Utils.backupFile(backup, data, this)) {
-            Utils.saveBackups(this, packageName, backupContainer);
-            Toast.makeText(this, R.string.toast_backup_success, Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, R.string.toast_backup_fail, Toast.LENGTH_SHORT).show();
-        }
+    public void onBackupFile(final String fullPath) {
+        final Context ctx = getApplicationContext();
+        new AsyncTask<Void, Void, Backup>() {
+            @Override
+            protected Backup doInBackground(Void... params) {
+                Backup backup = BackupStore.getInstance(ctx).newBackup();
+                if (Utils.backupFile(backup, fullPath, ctx)) {
+                    if (BackupIndex.getInstance(ctx).add(packageName, fullPath, backup)) {
+                        return backup;
+                    }
+                    BackupStore.getInstance(ctx).delete(backup);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Backup backup) {
+                if (backup == null) {
+                    Toast.makeText(ctx, R.string.toast_backup_fail, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                if (backupContainer != null) {
+                    backupContainer.put(fullPath, backup);
+                }
+                Toast.makeText(ctx, R.string.toast_backup_success, Toast.LENGTH_SHORT).show();
+                invalidateOptionsMenu();
+            }
+        }.execute();
     }
 
     @Override
@@ -214,27 +244,50 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
     }
 
     @Override
-    public String onRestoreFile(Backup backup, String fullPath) {
-        String data = Utils.getBackupContent(backup, this);
-        App.getRoot().file.write(fullPath, data.replace("'", "'\"'\"'"), false);
-        App.getRoot().processes.kill(packageName);
-        Toast.makeText(this, R.string.file_restored, Toast.LENGTH_SHORT).show();
-        return data;
+    public boolean canRollbackFile(String fullPath) {
+        return Utils.canRollbackFile(fullPath, this);
     }
 
     @Override
     public List<Backup> onDeleteBackup(Backup backup, String fullPath) {
         backupContainer.remove(fullPath, backup);
-        deleteFile(String.valueOf(backup.getTime()));
-        Utils.saveBackups(this, packageName, backupContainer);
+        BackupIndex.getInstance(this).remove(packageName, fullPath, backup);
+        BackupStore.getInstance(this).delete(backup);
         invalidateOptionsMenu();
         return backupContainer.get(fullPath);
     }
 
+    /**
+     * Show a file as soon as it is found, before the search is complete
+     */
+    private void addFoundFile(File file) {
+        PreferencePrefetcher.getInstance().add(file.getPath() + "/" + file.getName());
+        if (files == null) {
+            files = new Files();
+            files.add(file);
+            updateFindFiles(files);
+        } else {
+            files.add(file);
+            mViewPager.getAdapter().notifyDataSetChanged();
+        }
+    }
+
     private void updateFindFiles(Files f) {
+        boolean alreadyShown = files != null && files.size() > 0 && mViewPager.getAdapter() != null;
+        // The search may have fallen back to another listing after some
+        // files were shown, in another order
+        boolean sameFiles = alreadyShown && files.equals(f);
         files = f;
-        SectionsPagerAdapter mSectionsPagerAdapter = new SectionsPagerAdapter(getFragmentManager());
-        mViewPager.setAdapter(mSectionsPagerAdapter);
+        prefetch(f);
+        if (sameFiles) {
+            mViewPager.getAdapter().notifyDataSetChanged();
+            if (files.size() > 0) {
+                return;
+            }
+        } else {
+            SectionsPagerAdapter mSectionsPagerAdapter = new SectionsPagerAdapter(getFragmentManager());
+            mViewPager.setAdapter(mSectionsPagerAdapter);
+        }
         Animation fadeIn = AnimationUtils.loadAnimation(this, android.R.anim.fade_in);
         Animation fadeOut = AnimationUtils.loadAnimation(this, android.R.anim.fade_out);
 
@@ -257,6 +310,17 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
         }
     }
 
+    /**
+     * Load the files in the background, from the current tab to the farthest
+     */
+    private void prefetch(Files f) {
+        PreferencePrefetcher prefetcher = PreferencePrefetcher.getInstance();
+        prefetcher.setCurrent(mViewPager.getCurrentItem());
+        for (int i = 0; f != null && i < f.size(); i++) {
+            prefetcher.add(f.get(i).getPath() + "/" + f.get(i).getName());
+        }
+    }
+
     private void updateFindBackups(BackupContainer b) {
         backupContainer = b;
     }
@@ -272,6 +336,15 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
             return PreferencesFragment.newInstance(files.get(position).getName(), files.get(position).getPath(), packageName);
         }
 
+        /**
+         * The fragments are kept by file rather than by position, so a new
+         * adapter does not show the fragment of another file
+         */
+        @Override
+        public long getItemId(int position) {
+            return (files.get(position).getPath() + "/" + files.get(position).getName()).hashCode();
+        }
+
         @Override
         public int getCount() {
             return files.size();
@@ -283,7 +356,7 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
         }
     }
 
-    public class FindFilesAndBackupsTask extends AsyncTask<Void, Void, Pair<Files, BackupContainer>> {
+    public class FindFilesAndBackupsTask extends AsyncTask<Void, File, Pair<Files, BackupContainer>> {
         private final String mPackageName;
 
         public FindFilesAndBackupsTask(String packageName) {
@@ -292,7 +365,20 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
 
         @Override
         protected Pair<Files, BackupContainer> doInBackground(Void... params) {
-            return Pair.create(Utils.findXmlFiles(mPackageName), Utils.getBackups(getApplicationContext(), mPackageName));
+            Files files = Utils.findXmlFiles(mPackageName, new FileDiscovery.OnFileFoundListener() {
+                @Override
+                public void onFileFound(File file) {
+                    publishProgress(file);
+                }
+            });
+            return Pair.create(files, Utils.getBackups(getApplicationContext(), mPackageName));
+        }
+
+        @Override
+        protected void onProgressUpdate(File... values) {
+            for (File file : values) {
+                addFoundFile(file);
+            }
         }
 
         @Override
@@ -308,6 +394,9 @@ public class PreferencesActivity extends ActionBarActivity implements OnPreferen
         if (findFilesAndBackupsTask != null) {
             findFilesAndBackupsTask.cancel(true);
         }
+        if (isFinishing()) {
+            PreferencePrefetcher.getInstance().clear();
+        }
         super.onDestroy();
     }
 }
@@ -18,6 +18,7 @@ package fr.simon.marquis.preferencesmanager.ui;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -50,17 +51,25 @@ import com.spazedog.lib.rootfw.container.Data;
 
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.Backup;
 import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
 import fr.simon.marquis.preferencesmanager.model.PreferenceSortType;
 import fr.simon.marquis.preferencesmanager.model.PreferenceType;
+import fr.simon.marquis.preferencesmanager.util.PreferenceDiff;
+import fr.simon.marquis.preferencesmanager.util.PreferencePrefetcher;
+import fr.simon.marquis.preferencesmanager.util.PreferenceWatcher;
+import fr.simon.marquis.preferencesmanager.util.StringPool;
 import fr.simon.marquis.preferencesmanager.util.Ui;
 import fr.simon.marquis.preferencesmanager.util.Utils;
 
 public class PreferencesFragment extends Fragment {
     private static final int CODE_EDIT_FILE = 666;
+    // The files are written one after another, in the order of the edits
+    private static final ExecutorService WRITE_EXECUTOR = Executors.newSingleThreadExecutor();
 
     public static final String ARG_NAME = "NAME";
     public static final String ARG_PATH = "PATH";
@@ -77,6 +86,26 @@ public class PreferencesFragment extends Fragment {
 
     private OnPreferenceFragmentInteractionListener mListener;
 
+    // System.nanoTime() of the last save, contents read before are outdated
+    private long mLastSaveTime;
+    private final PreferenceWatcher.OnFileChangedListener mWatchListener = new PreferenceWatcher.OnFileChangedListener() {
+        @Override
+        public void onFileChanged(String fullPath, PreferenceFile file, long readTime) {
+            if (preferenceFile == null || gridView == null || gridView.getAdapter() == null || readTime < mLastSaveTime) {
+                return;
+            }
+            if (preferenceFile.hasUnsavedChanges()) {
+                // The edits are written over the file when saved
+                return;
+            }
+            List<PreferenceDiff.Change> changes = preferenceFile.merge(file);
+            if (!changes.isEmpty()) {
+                Log.d(Utils.TAG, changes.size() + " keys changed in " + fullPath);
+                ((PreferenceAdapter) gridView.getAdapter()).refresh();
+            }
+        }
+    };
+
     private GridView gridView;
     private View loadingView, emptyView;
     private TextView emptyViewText;
@@ -126,14 +155,38 @@ public class PreferencesFragment extends Fragment {
         updateFilter(null);
 
         if (preferenceFile == null) {
-            launchTask();
+            preferenceFile = PreferencePrefetcher.getInstance().poll(mFullPath);
+        }
+        if (preferenceFile == null) {
+            launchTask(true);
         } else {
             updateListView(preferenceFile, false);
         }
     }
 
-    private void launchTask() {
-        ParsingTask task = new ParsingTask(mFullPath);
+    @Override
+    public void onResume() {
+        super.onResume();
+        PreferenceWatcher.getInstance(getActivity()).watch(mFullPath, mWatchListener);
+    }
+
+    @Override
+    public void onPause() {
+        // The batch edit outlives a configuration change, the fragment is
+        // retained; leaving the screen applies it without a restart
+        if (getActivity().isFinishing() || isRemoving()) {
+            commitEdit(false);
+        }
+        PreferenceWatcher.getInstance(getActivity()).unwatch(mFullPath);
+        super.onPause();
+    }
+
+    /**
+     * @param prefetched true to use the file loaded by the
+     *                   {@link PreferencePrefetcher} if any
+     */
+    private void launchTask(boolean prefetched) {
+        ParsingTask task = new ParsingTask(mFullPath, prefetched);
         if (Utils.hasHONEYCOMB()) {
             task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         } else {
@@ -189,6 +242,16 @@ public class PreferencesFragment extends Fragment {
         menu.findItem(R.id.action_sort_alpha).setChecked(PreferencesActivity.preferenceSortType == PreferenceSortType.ALPHANUMERIC);
         menu.findItem(R.id.action_sort_type).setChecked(PreferencesActivity.preferenceSortType == PreferenceSortType.TYPE_AND_ALPHANUMERIC);
         menu.findItem(R.id.action_restore_file).setVisible(mListener != null && mListener.canRestoreFile(mFullPath));
+        PreferenceFile.EditSession session = preferenceFile == null ? null : preferenceFile.getEditSession();
+        menu.findItem(R.id.action_batch_begin).setVisible(session == null && preferenceFile != null && preferenceFile.isValidPreferenceFile());
+        menu.findItem(R.id.action_batch_commit).setVisible(session != null);
+        menu.findItem(R.id.action_batch_commit_no_kill).setVisible(session != null);
+        menu.findItem(R.id.action_batch_rollback).setVisible(session != null);
+        if (session != null) {
+            menu.findItem(R.id.action_batch_commit).setTitle(getString(R.string.action_batch_commit, session.size()));
+        }
+        menu.findItem(R.id.action_watch).setChecked(PreferenceWatcher.getInstance(getActivity()).isEnabled());
+        menu.findItem(R.id.action_rollback_file).setVisible(mListener != null && mListener.canRollbackFile(mFullPath));
         super.onPrepareOptionsMenu(menu);
     }
 
@@ -239,6 +302,28 @@ public class PreferencesFragment extends Fragment {
             case R.id.action_restore_file:
                 restoreBackup();
                 return true;
+            case R.id.action_batch_begin:
+                if (preferenceFile != null) {
+                    preferenceFile.beginEdit();
+                    getActivity().invalidateOptionsMenu();
+                }
+                return true;
+            case R.id.action_batch_commit:
+                commitEdit(true);
+                return true;
+            case R.id.action_batch_commit_no_kill:
+                commitEdit(false);
+                return true;
+            case R.id.action_batch_rollback:
+                rollbackEdit();
+                return true;
+            case R.id.action_watch:
+                PreferenceWatcher.getInstance(getActivity()).setEnabled(!item.isChecked());
+                getActivity().invalidateOptionsMenu();
+                return true;
+            case R.id.action_rollback_file:
+                rollbackFile();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -276,23 +361,30 @@ public class PreferencesFragment extends Fragment {
         }
     }
 
+    /**
+     * Read the file again, after it was written outside of this fragment
+     */
+    private void reload() {
+        loadingView.setVisibility(View.VISIBLE);
+        gridView.setVisibility(View.GONE);
+
+        if (getActivity() != null) {
+            Animation fadeInAnim = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_in);
+            if (fadeInAnim != null) {
+                loadingView.startAnimation(fadeInAnim);
+            }
+            Animation fadeOutAnim = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_out);
+            if (fadeOutAnim != null) {
+                gridView.startAnimation(fadeOutAnim);
+            }
+        }
+        launchTask(false);
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == CODE_EDIT_FILE && resultCode == ActionBarActivity.RESULT_OK) {
-            loadingView.setVisibility(View.VISIBLE);
-            gridView.setVisibility(View.GONE);
-
-            if (getActivity() != null) {
-                Animation fadeInAnim = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_in);
-                if (fadeInAnim != null) {
-                    loadingView.startAnimation(fadeInAnim);
-                }
-                Animation fadeOutAnim = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_out);
-                if (fadeOutAnim != null) {
-                    gridView.startAnimation(fadeOutAnim);
-                }
-            }
-            launchTask();
+            reload();
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
@@ -310,12 +402,114 @@ public class PreferencesFragment extends Fragment {
         }
     }
 
+    private void save() {
+        save(0);
+    }
+
+    /**
+     * Write the file in the background
+     *
+     * @param failMessage Shown if the file can not be written, or 0
+     */
+    private void save(int failMessage) {
+        if (preferenceFile.getEditSession() != null) {
+            // Written when the batch edit is committed, update its count
+            getActivity().invalidateOptionsMenu();
+            return;
+        }
+        String preferences = preferenceFile.prepareSave();
+        mLastSaveTime = System.nanoTime();
+        if (preferences == null) {
+            if (failMessage != 0) {
+                Toast.makeText(getActivity(), failMessage, Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        new SaveTask(getActivity(), preferenceFile, preferences, failMessage).executeOnExecutor(WRITE_EXECUTOR);
+    }
+
+    /**
+     * Write the whole backup over the file
+     */
+    public void restoreFile(final Backup backup) {
+        final Context ctx = getActivity().getApplicationContext();
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                String data = Utils.restoreBackup(backup, mFullPath, ctx);
+                if (data != null) {
+                    Utils.killPackage(mPackageName);
+                }
+                return data;
+            }
+
+            @Override
+            protected void onPostExecute(String data) {
+                if (data == null) {
+                    Toast.makeText(ctx, R.string.toast_restore_fail, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(ctx, R.string.file_restored, Toast.LENGTH_SHORT).show();
+                mLastSaveTime = System.nanoTime();
+                updateListView(PreferenceFile.fromXml(data), true);
+            }
+        }.executeOnExecutor(WRITE_EXECUTOR);
+    }
+
+    /**
+     * Put back the content the file had before it was last written
+     */
+    private void rollbackFile() {
+        final Context ctx = getActivity().getApplicationContext();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                if (!Utils.rollbackFile(mFullPath, ctx)) {
+                    return false;
+                }
+                Utils.killPackage(mPackageName);
+                return true;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean rolledBack) {
+                if (!rolledBack) {
+                    Toast.makeText(ctx, R.string.toast_rollback_fail, Toast.LENGTH_SHORT).show();
+                } else if (getActivity() != null) {
+                    reload();
+                }
+            }
+        }.executeOnExecutor(WRITE_EXECUTOR);
+    }
+
+    private void commitEdit(boolean kill) {
+        PreferenceFile.EditSession session = preferenceFile == null ? null : preferenceFile.getEditSession();
+        if (session == null) {
+            return;
+        }
+        if (!session.commit(mFullPath, mPackageName, getActivity(), kill)) {
+            Toast.makeText(getActivity(), R.string.toast_batch_fail, Toast.LENGTH_SHORT).show();
+        }
+        mLastSaveTime = System.nanoTime();
+        getActivity().invalidateOptionsMenu();
+    }
+
+    private void rollbackEdit() {
+        PreferenceFile.EditSession session = preferenceFile == null ? null : preferenceFile.getEditSession();
+        if (session == null) {
+            return;
+        }
+        session.rollback();
+        ((PreferenceAdapter) gridView.getAdapter()).refresh();
+        getActivity().invalidateOptionsMenu();
+    }
+
     public void addPrefKeyValue(String previousKey, String newKey, Object value, boolean editMode) {
         if (preferenceFile == null) {
             return;
         }
         preferenceFile.add(previousKey, newKey, value, editMode);
-        PreferenceFile.saveFast(preferenceFile, mFullPath, mPackageName);
+        save();
         ((PreferenceAdapter) gridView.getAdapter()).notifyDataSetChanged();
     }
 
@@ -324,7 +518,26 @@ public class PreferencesFragment extends Fragment {
             return;
         }
         preferenceFile.removeValue(key);
-        PreferenceFile.saveFast(preferenceFile, mFullPath, mPackageName);
+        save();
+        ((PreferenceAdapter) gridView.getAdapter()).notifyDataSetChanged();
+    }
+
+    /**
+     * Put back the values of the backup for the given keys only, the other
+     * keys of the file are left untouched
+     */
+    public void restoreKeys(List<PreferenceDiff.Change> changes) {
+        if (preferenceFile == null) {
+            return;
+        }
+        for (PreferenceDiff.Change change : changes) {
+            if (change.getType() == PreferenceDiff.REMOVED) {
+                preferenceFile.removeValue(change.getKey());
+            } else {
+                preferenceFile.add(null, change.getKey(), change.getBackupValue(), false);
+            }
+        }
+        save(R.string.toast_restore_fail);
         ((PreferenceAdapter) gridView.getAdapter()).notifyDataSetChanged();
     }
 
@@ -380,7 +593,7 @@ public class PreferencesFragment extends Fragment {
             public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3) {
 
                 Entry<String, Object> item = (Entry<String, Object>) gridView.getAdapter().getItem(arg2);
-                PreferenceType type = PreferenceType.fromObject(item.getValue());
+                PreferenceType type = PreferenceType.fromEntry(item);
                 if (type == PreferenceType.UNSUPPORTED) {
                     Toast.makeText(getActivity(), R.string.preference_unsupported, Toast.LENGTH_SHORT).show();
                 } else {
@@ -401,7 +614,7 @@ public class PreferencesFragment extends Fragment {
                 switch (item.getItemId()) {
                     case R.id.action_delete:
                         ((PreferenceAdapter) gridView.getAdapter()).deleteSelection();
-                        PreferenceFile.saveFast(preferenceFile, mFullPath, mPackageName);
+                        save();
                         ((PreferenceAdapter) gridView.getAdapter()).notifyDataSetChanged();
                         mode.finish();
                         return true;
@@ -447,23 +660,69 @@ public class PreferencesFragment extends Fragment {
         public boolean canRestoreFile(String fullPath);
 
         public List<Backup> getBackups(String fullPath);
+
+        public boolean canRollbackFile(String fullPath);
+    }
+
+    private class SaveTask extends AsyncTask<Void, Void, Boolean> {
+        private final Context mContext;
+        private final PreferenceFile mFile;
+        private final String mPreferences;
+        private final int mFailMessage;
+
+        public SaveTask(Context ctx, PreferenceFile file, String preferences, int failMessage) {
+            super();
+            this.mContext = ctx.getApplicationContext();
+            this.mFile = file;
+            this.mPreferences = preferences;
+            this.mFailMessage = failMessage;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return PreferenceFile.write(mPreferences, mFullPath, mPackageName, mContext, true);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean written) {
+            super.onPostExecute(written);
+            mFile.onSaved(written);
+            // The contents read while it was written are outdated
+            mLastSaveTime = System.nanoTime();
+            if (!written && mFailMessage != 0) {
+                Toast.makeText(mContext, mFailMessage, Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
     public class ParsingTask extends AsyncTask<Void, Void, PreferenceFile> {
         private final String mFile;
+        private final boolean mPrefetched;
 
-        public ParsingTask(String file) {
+        public ParsingTask(String file, boolean prefetched) {
             super();
             this.mFile = file;
+            this.mPrefetched = prefetched;
         }
 
         @Override
         protected PreferenceFile doInBackground(Void... params) {
             long start = System.currentTimeMillis();
+            if (mPrefetched) {
+                PreferenceFile file = PreferencePrefetcher.getInstance().take(mFile);
+                Log.d(Utils.TAG, "End waiting for " + mFile + " --> " + (System.currentTimeMillis() - start) + " ms " + PreferencePrefetcher.getInstance());
+                if (file != null) {
+                    return file;
+                }
+                start = System.currentTimeMillis();
+            }
             Log.d(Utils.TAG, "Start reading " + mFile);
-            Data data = App.getRoot().file.read(mFile);
-            Log.d(Utils.TAG, "End reading " + mFile + " --> " + (System.currentTimeMillis() - start) + " ms");
-            return PreferenceFile.fromXml(data == null ? null : data.toString());
+            Data data = App.getRootPool().read(mFile);
+            Log.d(Utils.TAG, "End reading " + mFile + " --> " + (System.currentTimeMillis() - start) + " ms " + App.getRootPool());
+            start = System.currentTimeMillis();
+            PreferenceFile file = PreferenceFile.fromXml(data == null ? null : data.toString());
+            Log.d(Utils.TAG, "End parsing " + mFile + " --> " + (System.currentTimeMillis() - start) + " ms " + StringPool.getInstance());
+            return file;
         }
 
         @Override
@@ -19,32 +19,52 @@ import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.FragmentManager;
+import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import fr.simon.marquis.preferencesmanager.R;
 import fr.simon.marquis.preferencesmanager.model.Backup;
 import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
+import fr.simon.marquis.preferencesmanager.util.PreferenceDiff;
+import fr.simon.marquis.preferencesmanager.util.Utils;
 
 public class RestoreDialogFragment extends DialogFragment implements AdapterView.OnItemClickListener {
 
     private final static String TAG = "RestoreDialogFragment";
     private static final String ARG_FULL_PATH = "FULL_PATH";
     private static final String ARG_BACKUPS = "BACKUPS";
+    private static final int MAX_VALUE_LENGTH = 80;
 
     private OnRestoreFragmentInteractionListener listener;
     private List<Backup> backups;
     private String mFullPath;
+    private ListView mListView;
+    private View mDiffView;
+    private TextView mStatus;
+    private ListView mDiffList;
+    private View mRestoreSelected;
+    private Backup mBackup;
+    private List<PreferenceDiff.Change> mChanges;
 
     public static void show(PreferencesFragment target, FragmentManager fm, String fullPath, List<Backup> backups) {
         dismiss(fm);
@@ -93,9 +113,31 @@ public class RestoreDialogFragment extends DialogFragment implements AdapterView
         }
         View view = LayoutInflater.from(getActivity()).inflate(R.layout.dialog_restore, null);
         assert view != null;
-        ListView listView = (ListView) view.findViewById(R.id.listView);
-        listView.setAdapter(new RestoreAdapter(getActivity(), this, backups, listener, mFullPath));
-        listView.setOnItemClickListener(this);
+        mListView = (ListView) view.findViewById(R.id.listView);
+        mListView.setAdapter(new RestoreAdapter(getActivity(), this, backups, listener, mFullPath));
+        mListView.setOnItemClickListener(this);
+        mDiffView = view.findViewById(R.id.diff);
+        mStatus = (TextView) view.findViewById(R.id.status);
+        mDiffList = (ListView) view.findViewById(R.id.diffList);
+        mDiffList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                mRestoreSelected.setEnabled(mDiffList.getCheckedItemCount() > 0);
+            }
+        });
+        view.findViewById(R.id.restore_all).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                restoreAll(mBackup);
+            }
+        });
+        mRestoreSelected = view.findViewById(R.id.restore_selected);
+        mRestoreSelected.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                restoreSelected();
+            }
+        });
         return view;
     }
 
@@ -136,16 +178,122 @@ public class RestoreDialogFragment extends DialogFragment implements AdapterView
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-        if (listener != null) {
-            String data = listener.onRestoreFile(backups.get(position), mFullPath);
+        Backup backup = backups.get(position);
+        PreferencesFragment fragment = (PreferencesFragment) getTargetFragment();
+        if (fragment == null || fragment.preferenceFile == null || !fragment.preferenceFile.isValidPreferenceFile()) {
+            restoreAll(backup);
+        } else {
+            showDiff(backup);
+        }
+    }
+
+    /**
+     * Show the keys of the file which differ from the backup, before
+     * restoring it
+     */
+    private void showDiff(final Backup backup) {
+        mBackup = backup;
+        mListView.setVisibility(View.GONE);
+        mDiffView.setVisibility(View.VISIBLE);
+        mStatus.setText(R.string.diff_loading);
+        final Context ctx = getActivity().getApplicationContext();
+        new AsyncTask<Void, Void, Map<String, Object>>() {
+            @Override
+            protected Map<String, Object> doInBackground(Void... params) {
+                String xml = Utils.readBackup(backup, ctx);
+                if (xml == null) {
+                    return null;
+                }
+                try {
+                    return PreferenceFile.readMapXml(xml);
+                } catch (XmlPullParserException e) {
+                    Log.e(Utils.TAG, "Invalid backup " + backup.getTime() + " of " + mFullPath, e);
+                } catch (IOException e) {
+                    Log.e(Utils.TAG, "Invalid backup " + backup.getTime() + " of " + mFullPath, e);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Map<String, Object> map) {
+                PreferencesFragment fragment = (PreferencesFragment) getTargetFragment();
+                if (!isAdded() || fragment == null || fragment.preferenceFile == null) {
+                    return;
+                }
+                if (map == null) {
+                    Toast.makeText(ctx, R.string.toast_restore_fail, Toast.LENGTH_SHORT).show();
+                    dismiss(getFragmentManager());
+                    return;
+                }
+                setChanges(PreferenceDiff.compute(map, fragment.preferenceFile.getMap()));
+            }
+        }.execute();
+    }
+
+    private void setChanges(List<PreferenceDiff.Change> changes) {
+        mChanges = changes;
+        mStatus.setText(changes.isEmpty() ? getString(R.string.diff_none) : getString(R.string.diff_changes, changes.size()));
+        List<String> labels = new ArrayList<String>(changes.size());
+        for (PreferenceDiff.Change change : changes) {
+            labels.add(getLabel(change));
+        }
+        mDiffList.setAdapter(new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_multiple_choice, labels));
+        for (int i = 0; i < changes.size(); i++) {
+            mDiffList.setItemChecked(i, true);
+        }
+        mRestoreSelected.setEnabled(!changes.isEmpty());
+    }
+
+    private static String getLabel(PreferenceDiff.Change change) {
+        switch (change.getType()) {
+            case PreferenceDiff.ADDED:
+                return "+ " + change.getKey() + "\n" + format(change.getBackupValue());
+            case PreferenceDiff.REMOVED:
+                return "- " + change.getKey() + "\n" + format(change.getCurrentValue());
+            default:
+                return "~ " + change.getKey() + "\n" + format(change.getCurrentValue()) + " \u2192 " + format(change.getBackupValue());
+        }
+    }
+
+    private static String format(Object value) {
+        String text = String.valueOf(value);
+        return text.length() > MAX_VALUE_LENGTH ? text.substring(0, MAX_VALUE_LENGTH) + "\u2026" : text;
+    }
+
+    /**
+     * Write the whole backup over the file
+     */
+    private void restoreAll(Backup backup) {
+        if (backup != null) {
             PreferencesFragment fragment = (PreferencesFragment) getTargetFragment();
             if (fragment != null) {
-                fragment.updateListView(PreferenceFile.fromXml(data), true);
+                fragment.restoreFile(backup);
             }
             dismiss(getFragmentManager());
         }
     }
 
+    /**
+     * Write back the checked keys only
+     */
+    private void restoreSelected() {
+        PreferencesFragment fragment = (PreferencesFragment) getTargetFragment();
+        if (fragment == null || mChanges == null) {
+            return;
+        }
+        List<PreferenceDiff.Change> selected = new ArrayList<PreferenceDiff.Change>();
+        SparseBooleanArray checked = mDiffList.getCheckedItemPositions();
+        for (int i = 0; checked != null && i < checked.size(); i++) {
+            if (checked.valueAt(i)) {
+                selected.add(mChanges.get(checked.keyAt(i)));
+            }
+        }
+        if (!selected.isEmpty()) {
+            fragment.restoreKeys(selected);
+        }
+        dismiss(getFragmentManager());
+    }
+
     public void noMoreBackup() {
         dismiss(getFragmentManager());
         PreferencesFragment fragment = (PreferencesFragment) getTargetFragment();
@@ -156,8 +304,6 @@ public class RestoreDialogFragment extends DialogFragment implements AdapterView
 
 
     public interface OnRestoreFragmentInteractionListener {
-        public String onRestoreFile(Backup backup, String fullPath);
-
         public List<Backup> onDeleteBackup(Backup backup, String fullPath);
     }
 }
\ No newline at end of file
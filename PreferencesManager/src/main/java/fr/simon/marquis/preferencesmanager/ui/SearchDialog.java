@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.ui;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.simon.marquis.preferencesmanager.R;
+import fr.simon.marquis.preferencesmanager.model.SearchHit;
+import fr.simon.marquis.preferencesmanager.util.PreferenceIndex;
+
+/**
+ * Search a key or a value in the preferences of every app
+ */
+public class SearchDialog extends DialogFragment implements AdapterView.OnItemClickListener, PreferenceIndex.OnIndexChangedListener {
+
+    private final static String TAG = "SearchDialog";
+
+    private PreferenceIndex mIndex;
+    private EditText mQuery;
+    private TextView mStatus;
+    private HitAdapter mAdapter;
+
+    public static void show(FragmentManager fm) {
+        if (fm.findFragmentByTag(TAG) == null) {
+            new SearchDialog().show(fm, TAG);
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mIndex = PreferenceIndex.getInstance(getActivity());
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        if (getActivity() == null) {
+            return null;
+        }
+        View view = LayoutInflater.from(getActivity()).inflate(R.layout.dialog_search, null);
+        assert view != null;
+        mQuery = (EditText) view.findViewById(R.id.query);
+        mStatus = (TextView) view.findViewById(R.id.status);
+        ListView listView = (ListView) view.findViewById(R.id.listView);
+        mAdapter = new HitAdapter(getActivity());
+        listView.setAdapter(mAdapter);
+        listView.setOnItemClickListener(this);
+        mQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                search();
+            }
+        });
+        return view;
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        Dialog dialog = super.onCreateDialog(savedInstanceState);
+        dialog.setTitle(R.string.action_search_everywhere);
+        return dialog;
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mIndex.addListener(this);
+        mIndex.update();
+        updateStatus(mIndex.isIndexing(), mIndex.size());
+        search();
+    }
+
+    @Override
+    public void onStop() {
+        mIndex.removeListener(this);
+        super.onStop();
+    }
+
+    private void search() {
+        String query = mQuery.getText() == null ? null : mQuery.getText().toString();
+        mAdapter.setHits(mIndex.search(query));
+    }
+
+    private void updateStatus(boolean indexing, int files) {
+        mStatus.setText(getString(indexing ? R.string.search_indexing : R.string.search_indexed, files));
+    }
+
+    @Override
+    public void onIndexChanged(final boolean indexing, final int files) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isAdded()) {
+                    updateStatus(indexing, files);
+                    search();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        SearchHit hit = (SearchHit) mAdapter.getItem(position);
+        Intent i = new Intent(getActivity(), PreferencesActivity.class);
+        i.putExtra(PreferencesActivity.EXTRA_TITLE, getLabel(getActivity(), hit.getPackageName()));
+        i.putExtra(PreferencesActivity.EXTRA_PACKAGE_NAME, hit.getPackageName());
+        startActivity(i);
+    }
+
+    private static String getLabel(Context ctx, String packageName) {
+        PackageManager pm = ctx.getPackageManager();
+        try {
+            ApplicationInfo info = pm == null ? null : pm.getApplicationInfo(packageName, 0);
+            CharSequence label = info == null ? null : info.loadLabel(pm);
+            if (label != null) {
+                return label.toString();
+            }
+        } catch (PackageManager.NameNotFoundException ignored) {
+        }
+        return packageName;
+    }
+
+    private static class HitAdapter extends BaseAdapter {
+        private final LayoutInflater layoutInflater;
+        private List<SearchHit> hits = new ArrayList<SearchHit>();
+
+        private HitAdapter(Context ctx) {
+            this.layoutInflater = LayoutInflater.from(ctx);
+        }
+
+        private void setHits(List<SearchHit> hits) {
+            this.hits = hits;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return hits.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return hits.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return 0;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            ViewHolder holder;
+            if (convertView == null) {
+                convertView = layoutInflater.inflate(R.layout.row_search_hit, parent, false);
+                assert convertView != null;
+                holder = new ViewHolder();
+                holder.key = (TextView) convertView.findViewById(R.id.item_key);
+                holder.value = (TextView) convertView.findViewById(R.id.item_value);
+                holder.location = (TextView) convertView.findViewById(R.id.item_location);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
+            }
+
+            SearchHit hit = hits.get(position);
+            holder.key.setText(hit.getKey());
+            holder.value.setText(hit.getValue());
+            holder.location.setText(hit.getPackageName() + " / " + hit.getFileName());
+            return convertView;
+        }
+
+        private static class ViewHolder {
+            private TextView key;
+            private TextView value;
+            private TextView location;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import fr.simon.marquis.preferencesmanager.model.AppEntry;
+
+/**
+ * Applications of the last run, saved in the app's private storage so the
+ * list can be displayed before PackageManager is queried
+ */
+public class AppListSnapshot {
+
+    private static final String FILE_NAME = "applications";
+    private static final int VERSION = 2;
+
+    /**
+     * @return The saved entries, or null if there is no snapshot
+     */
+    public static List<AppEntry> load(Context ctx) {
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(ctx.openFileInput(FILE_NAME)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            List<AppEntry> entries = new ArrayList<AppEntry>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new AppEntry(in.readUTF(), in.readUTF(), in.readUTF(), in.readChar(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            Log.d(Utils.TAG, "Loaded " + count + " applications from the snapshot --> " + (System.currentTimeMillis() - start) + " ms");
+            return entries;
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not load the applications snapshot", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void save(Context ctx, Collection<AppEntry> entries) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(ctx.openFileOutput(FILE_NAME, Context.MODE_PRIVATE)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (AppEntry entry : entries) {
+                out.writeUTF(entry.getPackageName());
+                out.writeUTF(entry.getLabel());
+                out.writeUTF(entry.getSortingValue());
+                out.writeChar(entry.getHeaderChar());
+                out.writeLong(entry.getLastUpdateTime());
+                out.writeInt(entry.getVersionCode());
+                out.writeInt(entry.getFlags());
+            }
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not save the applications snapshot", e);
+            ctx.deleteFile(FILE_NAME);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.RootFW;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import fr.simon.marquis.preferencesmanager.model.Backup;
+import fr.simon.marquis.preferencesmanager.model.BackupContainer;
+import fr.simon.marquis.preferencesmanager.ui.App;
+
+/**
+ * Zip archive of the backups of every package, to move them off the device.
+ * <p/>
+ * Each package has a {@code <package>/backups.json} entry with its
+ * {@link BackupContainer}, followed by an entry for each backup, named
+ * {@code <package>/<time>/<path of the file>}. The archive is written and
+ * read as a stream, a backup at a time, so the memory used does not depend
+ * on its size.
+ */
+public class BackupArchive {
+
+    private static final String DIRECTORY = "PreferencesManager";
+    private static final String EXTENSION = ".zip";
+    private static final String METADATA = "backups.json";
+    private static final int MAX_METADATA = 1024 * 1024;
+
+    /**
+     * A backup of the archive
+     */
+    public static class Entry {
+        private final String mPackageName;
+        private final String mPath;
+        private final long mTime;
+
+        Entry(String packageName, String path, long time) {
+            super();
+            mPackageName = packageName;
+            mPath = path;
+            mTime = time;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        private String getName() {
+            return mPackageName + "/" + mTime + "/" + mPath;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Entry entry = (Entry) o;
+
+            return mTime == entry.mTime && mPackageName.equals(entry.mPackageName) && mPath.equals(entry.mPath);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mPackageName.hashCode();
+            result = 31 * result + mPath.hashCode();
+            result = 31 * result + (int) (mTime ^ (mTime >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * @return The directory of the archives, on the external storage
+     */
+    public static File getDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), DIRECTORY);
+    }
+
+    /**
+     * @return The most recent archive of the directory, or null
+     */
+    public static File getLatest() {
+        File[] files = getDirectory().listFiles();
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(EXTENSION) && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Write every backup to a new archive of the directory
+     *
+     * @return The archive
+     */
+    public static File export(Context ctx) throws IOException {
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create " + directory);
+        }
+        String name = "backups-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, name + EXTENSION);
+        File tmp = new File(directory, name + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            export(ctx, out);
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can not write " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Write every backup to the archive
+     *
+     * @return The number of backups written
+     */
+    private static int export(Context ctx, OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        BackupIndex index = BackupIndex.getInstance(ctx);
+        BackupStore store = BackupStore.getInstance(ctx);
+        ZipOutputStream zip = new ZipOutputStream(out);
+        byte[] buffer = new byte[8192];
+        int count = 0;
+        for (String packageName : index.getPackages()) {
+            BackupContainer container = index.getBackups(packageName);
+            zip.putNextEntry(new ZipEntry(packageName + "/" + METADATA));
+            zip.write(container.toJSON().toString().getBytes("UTF-8"));
+            zip.closeEntry();
+
+            for (String path : container.getFiles()) {
+                for (Backup backup : container.get(path)) {
+                    InputStream in;
+                    try {
+                        in = store.open(backup);
+                    } catch (IOException e) {
+                        Log.e(Utils.TAG, "Can not export the backup " + backup.getTime() + " of " + path, e);
+                        continue;
+                    }
+                    try {
+                        zip.putNextEntry(new ZipEntry(new Entry(packageName, path, backup.getTime()).getName()));
+                        int length;
+                        while ((length = in.read(buffer)) > 0) {
+                            zip.write(buffer, 0, length);
+                        }
+                        zip.closeEntry();
+                        count++;
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        }
+        zip.finish();
+        Log.d(Utils.TAG, "Exported " + count + " backups --> " + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * @return The backups of the archive, read from the metadata of each
+     * package
+     */
+    public static List<Entry> list(InputStream in) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry zipEntry;
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            String name = zipEntry.getName();
+            int slash = name.indexOf('/');
+            if (slash <= 0 || !name.substring(slash + 1).equals(METADATA)) {
+                continue;
+            }
+            String packageName = name.substring(0, slash);
+            try {
+                BackupContainer container = BackupContainer.fromJSON(new JSONArray(read(zip)));
+                for (String path : container.getFiles()) {
+                    if (isValidPath(packageName, path)) {
+                        for (Backup backup : container.get(path)) {
+                            entries.add(new Entry(packageName, path, backup.getTime()));
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                Log.e(Utils.TAG, "Invalid metadata of " + packageName, e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write the selected backups of the archive to their files, and kill
+     * the packages restored
+     *
+     * @return The number of files restored
+     */
+    public static int restore(Context ctx, InputStream in, Set<Entry> selected) throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> names = new HashSet<String>();
+        for (Entry entry : selected) {
+            if (isValidPath(entry.getPackageName(), entry.getPath())) {
+                names.add(entry.getName());
+            }
+        }
+
+        Set<String> packages = new HashSet<String>();
+        int count = 0;
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry zipEntry;
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            String name = zipEntry.getName();
+            if (!names.contains(name)) {
+                continue;
+            }
+            int slash = name.indexOf('/');
+            String packageName = name.substring(0, slash);
+            String path = name.substring(name.indexOf('/', slash + 1) + 1);
+            if (Utils.restoreFile(zip, path, ctx)) {
+                packages.add(packageName);
+                count++;
+            }
+        }
+
+        for (final String packageName : packages) {
+            App.getRootPool().execute(new RootShellPool.Command<Void>() {
+                @Override
+                public Void run(RootFW root) {
+                    root.processes.kill(packageName);
+                    return null;
+                }
+            });
+        }
+        Log.d(Utils.TAG, "Restored " + count + "/" + selected.size() + " files of " + packages.size() + " packages --> " + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * @return true if the path is a file in the data directory of the
+     * package, an archive must not write anywhere else
+     */
+    private static boolean isValidPath(String packageName, String path) {
+        return path.startsWith(Utils.BASE_PATH + packageName + "/") && !path.contains("/../") && !path.endsWith("/..")
+                && packageName.indexOf('/') < 0 && !packageName.equals("..");
+    }
+
+    private static String read(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = zip.read(buffer)) > 0) {
+            if (out.size() + length > MAX_METADATA) {
+                throw new IOException("Metadata too large");
+            }
+            out.write(buffer, 0, length);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fr.simon.marquis.preferencesmanager.model.Backup;
+import fr.simon.marquis.preferencesmanager.model.BackupContainer;
+
+/**
+ * Backups of every file, one row per backup.
+ * <p/>
+ * Adding or deleting a backup only touches its row, and the backups of a
+ * package are read with the primary key index. Backups were saved as one
+ * json string per package in the default SharedPreferences, they are
+ * imported when the table is created.
+ */
+public class BackupIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "backups.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "backups";
+    private static final String COLUMN_PACKAGE = "package";
+    private static final String COLUMN_FILE = "file";
+    private static final String COLUMN_TIME = "time";
+
+    private static BackupIndex instance;
+
+    private final Context mContext;
+    // Legacy keys imported by onCreate, removed once the table is committed
+    private List<String> mImportedKeys;
+
+    private BackupIndex(Context ctx) {
+        super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = ctx;
+    }
+
+    public static synchronized BackupIndex getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new BackupIndex(ctx.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_PACKAGE + " TEXT NOT NULL, "
+                + COLUMN_FILE + " TEXT NOT NULL, "
+                + COLUMN_TIME + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PACKAGE + ", " + COLUMN_FILE + ", " + COLUMN_TIME + "))");
+        importLegacy(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (mImportedKeys != null) {
+            SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+            for (String key : mImportedKeys) {
+                editor.remove(key);
+            }
+            editor.commit();
+            mImportedKeys = null;
+        }
+    }
+
+    /**
+     * @return The backups of the files of the package, oldest first
+     */
+    public synchronized BackupContainer getBackups(String packageName) {
+        BackupContainer container = new BackupContainer();
+        Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COLUMN_FILE, COLUMN_TIME},
+                COLUMN_PACKAGE + " = ?", new String[]{packageName}, null, null, COLUMN_TIME);
+        try {
+            while (cursor.moveToNext()) {
+                container.put(cursor.getString(0), new Backup(cursor.getLong(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return container;
+    }
+
+    /**
+     * @return The packages with backups, sorted
+     */
+    public synchronized List<String> getPackages() {
+        List<String> packages = new ArrayList<String>();
+        Cursor cursor = getReadableDatabase().query(true, TABLE, new String[]{COLUMN_PACKAGE},
+                null, null, null, null, COLUMN_PACKAGE, null);
+        try {
+            while (cursor.moveToNext()) {
+                packages.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return packages;
+    }
+
+    /**
+     * @return true if the backup was recorded
+     */
+    public synchronized boolean add(String packageName, String file, Backup backup) {
+        return insert(getWritableDatabase(), packageName, file, backup.getTime());
+    }
+
+    public synchronized void remove(String packageName, String file, Backup backup) {
+        getWritableDatabase().delete(TABLE, COLUMN_PACKAGE + " = ? AND " + COLUMN_FILE + " = ? AND " + COLUMN_TIME + " = ?",
+                new String[]{packageName, file, String.valueOf(backup.getTime())});
+    }
+
+    private static boolean insert(SQLiteDatabase db, String packageName, String file, long time) {
+        ContentValues values = new ContentValues(3);
+        values.put(COLUMN_PACKAGE, packageName);
+        values.put(COLUMN_FILE, file);
+        values.put(COLUMN_TIME, time);
+        return db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+    }
+
+    /**
+     * Import the json arrays of backups of the default SharedPreferences,
+     * keyed by package name
+     */
+    private void importLegacy(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        int count = 0;
+        for (Map.Entry<String, ?> entry : PreferenceManager.getDefaultSharedPreferences(mContext).getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String) || !isLegacyBackups((String) entry.getValue())) {
+                continue;
+            }
+            String packageName = entry.getKey();
+            try {
+                BackupContainer container = BackupContainer.fromJSON(new JSONArray((String) entry.getValue()));
+                for (String file : container.getFiles()) {
+                    for (Backup backup : container.get(file)) {
+                        insert(db, packageName, file, backup.getTime());
+                        count++;
+                    }
+                }
+                keys.add(packageName);
+            } catch (JSONException e) {
+                Log.e(Utils.TAG, "Can not import the backups of " + packageName, e);
+            }
+        }
+        mImportedKeys = keys;
+        Log.d(Utils.TAG, "Imported " + count + " backups of " + keys.size() + " packages --> " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @return true if the value is an array of objects, like the backups;
+     * the other settings are booleans, names or arrays of strings
+     */
+    private static boolean isLegacyBackups(String value) {
+        if (!value.startsWith("[")) {
+            return false;
+        }
+        try {
+            JSONArray array = new JSONArray(value);
+            for (int i = 0; i < array.length(); i++) {
+                if (array.optJSONObject(i) == null) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fr.simon.marquis.preferencesmanager.model.Backup;
+
+/**
+ * Deduplicated storage of the backups.
+ * <p/>
+ * The content of a backup is cut into chunks at boundaries chosen by a
+ * rolling hash of the content, so an edit only changes the chunks around
+ * it. Chunks are stored once, named by their SHA-1, and each backup only
+ * keeps a manifest of its chunks. Chunks are deleted with the last
+ * manifest referencing them.
+ * <p/>
+ * Chunks are deflated one by one, with a dictionary of the usual xml of
+ * the preferences since they are small. Level 6 with the dictionary keeps
+ * a chunk at about 26% of its size, level 9 is not smaller and no
+ * dictionary costs 2 to 3 points. The first version of the store kept the
+ * chunks raw, named by their SHA-1 only: the deflated chunks have their
+ * own extension, so the manifests of both versions are read and a raw
+ * chunk is never taken for a deflated one.
+ * <p/>
+ * Backups made before the store are plain files named by their time, they
+ * are still read and deleted.
+ */
+public class BackupStore {
+
+    private static final String DIRECTORY = "backups";
+    private static final String CHUNKS = "chunks";
+    private static final String MANIFESTS = "manifests";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final int VERSION = 2;
+    // Manifests of the raw chunks
+    private static final int VERSION_RAW = 1;
+    private static final String DEFLATED_EXTENSION = ".z";
+
+    // Chunks of 2 KB on average, between 256 B and 16 KB
+    private static final int MIN_CHUNK = 256;
+    private static final int MAX_CHUNK = 16 * 1024;
+    private static final long BOUNDARY_MASK = 0xFFE0000000000000L;
+    private static final int DIGEST_LENGTH = 20;
+    private static final long[] GEAR = new long[256];
+
+    private static final int COMPRESSION_LEVEL = 6;
+    private static final byte[] DICTIONARY = ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n</map>\n"
+            + "    <set name=\"\">\n    </set>\n        <string></string>\n"
+            + "    <boolean name=\"\" value=\"false\" />\n    <boolean name=\"\" value=\"true\" />\n"
+            + "    <int name=\"\" value=\"\" />\n    <long name=\"\" value=\"\" />\n    <float name=\"\" value=\"\" />\n"
+            + "    <string name=\"\"></string>\n").getBytes();
+
+    static {
+        // Fixed seed: the same content must always be cut the same way
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static BackupStore instance;
+
+    private final Context mContext;
+    private final File mChunks;
+    private final File mManifests;
+    // Number of manifests referencing each chunk by file name, built on the
+    // first delete
+    private Map<String, Integer> mReferences;
+    // Number of writes in progress referencing each chunk, which are kept
+    // even if no manifest references them yet
+    private final Map<String, Integer> mPending = new HashMap<String, Integer>();
+    // Time of the last backup made, backups are identified by their time
+    private long mLastTime;
+
+    private BackupStore(Context ctx) {
+        super();
+        mContext = ctx.getApplicationContext();
+        File root = new File(mContext.getFilesDir(), DIRECTORY);
+        mChunks = new File(root, CHUNKS);
+        mManifests = new File(root, MANIFESTS);
+    }
+
+    public static synchronized BackupStore getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new BackupStore(ctx);
+        }
+        return instance;
+    }
+
+    /**
+     * @return A backup made now, whose time is not used by another backup
+     */
+    public synchronized Backup newBackup() {
+        long time = Math.max(System.currentTimeMillis(), mLastTime + 1);
+        while (getManifest(new Backup(time)).exists() || mContext.getFileStreamPath(String.valueOf(time)).exists()) {
+            time++;
+        }
+        mLastTime = time;
+        return new Backup(time);
+    }
+
+    /**
+     * Store the content of the backup, only the chunks not already stored
+     * are written. Backups are cut and compressed in parallel, the store is
+     * only locked to write the files.
+     */
+    public boolean write(Backup backup, InputStream content) {
+        long start = System.currentTimeMillis();
+        List<byte[]> digests = new ArrayList<byte[]>();
+        List<String> names = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        int written = 0;
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            InputStream in = new BufferedInputStream(content);
+            byte[] chunk = new byte[MAX_CHUNK];
+            // Incompressible chunks grow a little
+            byte[] compressed = new byte[MAX_CHUNK + MAX_CHUNK / 16 + 64];
+            int length;
+            while ((length = readChunk(in, chunk)) > 0) {
+                md.update(chunk, 0, length);
+                byte[] digest = md.digest();
+                String name = toHex(digest) + DEFLATED_EXTENSION;
+                boolean stored;
+                synchronized (this) {
+                    addPending(name);
+                    names.add(name);
+                    stored = getChunk(name).isFile();
+                }
+                if (!stored) {
+                    int size = deflate(deflater, chunk, length, compressed);
+                    synchronized (this) {
+                        // Unless another backup wrote it meanwhile
+                        if (!getChunk(name).isFile()) {
+                            writeChunk(name, compressed, size);
+                            written++;
+                        }
+                    }
+                }
+                digests.add(digest);
+                lengths.add(length);
+            }
+            synchronized (this) {
+                writeManifest(backup, digests, lengths);
+                if (mReferences != null) {
+                    for (String name : names) {
+                        Integer count = mReferences.get(name);
+                        mReferences.put(name, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not write the backup " + backup.getTime(), e);
+            return false;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Utils.TAG, "Can not write the backup " + backup.getTime(), e);
+            return false;
+        } finally {
+            deflater.end();
+            synchronized (this) {
+                for (String name : names) {
+                    removePending(name);
+                }
+            }
+        }
+
+        Log.d(Utils.TAG, "Backup " + backup.getTime() + ": " + written + "/" + digests.size() + " new chunks --> " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * @return The content of the backup, inflated chunk by chunk while it is
+     * read
+     */
+    public synchronized InputStream open(Backup backup) throws IOException {
+        File manifest = getManifest(backup);
+        if (!manifest.isFile()) {
+            return mContext.openFileInput(getLegacyName(backup));
+        }
+        List<String> names = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        readManifest(manifest, names, lengths);
+        for (String name : names) {
+            if (!getChunk(name).isFile()) {
+                throw new FileNotFoundException("Missing chunk " + name + " of the backup " + backup.getTime());
+            }
+        }
+        return new ChunksInputStream(names, lengths);
+    }
+
+    /**
+     * Delete the backup, and the chunks no other backup references
+     */
+    public synchronized void delete(Backup backup) {
+        File manifest = getManifest(backup);
+        if (!manifest.isFile()) {
+            mContext.deleteFile(getLegacyName(backup));
+            return;
+        }
+        try {
+            if (mReferences == null) {
+                collect();
+            }
+            List<String> names = new ArrayList<String>();
+            readManifest(manifest, names, null);
+            if (!manifest.delete()) {
+                return;
+            }
+            int deleted = 0;
+            for (String name : names) {
+                Integer count = mReferences.get(name);
+                if (count == null || count <= 1) {
+                    mReferences.remove(name);
+                    if (!mPending.containsKey(name) && getChunk(name).delete()) {
+                        deleted++;
+                    }
+                } else {
+                    mReferences.put(name, count - 1);
+                }
+            }
+            Log.d(Utils.TAG, "Backup " + backup.getTime() + " deleted with " + deleted + " chunks");
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not delete the backup " + backup.getTime(), e);
+        }
+    }
+
+    /**
+     * Count the references of every chunk, and delete the chunks left by
+     * interrupted backups
+     */
+    private void collect() throws IOException {
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        File[] manifests = mManifests.listFiles();
+        if (manifests != null) {
+            for (File manifest : manifests) {
+                if (manifest.getName().endsWith(TMP_EXTENSION)) {
+                    manifest.delete();
+                    continue;
+                }
+                List<String> names = new ArrayList<String>();
+                readManifest(manifest, names, null);
+                for (String name : names) {
+                    Integer count = references.get(name);
+                    references.put(name, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        File[] directories = mChunks.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] chunks = directory.listFiles();
+                if (chunks == null) {
+                    continue;
+                }
+                for (File chunk : chunks) {
+                    if (!references.containsKey(chunk.getName()) && !mPending.containsKey(chunk.getName())) {
+                        chunk.delete();
+                    }
+                }
+            }
+        }
+        mReferences = references;
+    }
+
+    private void addPending(String name) {
+        Integer count = mPending.get(name);
+        mPending.put(name, count == null ? 1 : count + 1);
+    }
+
+    private void removePending(String name) {
+        Integer count = mPending.get(name);
+        if (count == null || count <= 1) {
+            mPending.remove(name);
+        } else {
+            mPending.put(name, count - 1);
+        }
+    }
+
+    /**
+     * Read the next chunk: up to the next content-defined boundary, or the
+     * maximum chunk size
+     *
+     * @return The length of the chunk, 0 at the end of the stream
+     */
+    private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+        long hash = 0;
+        int length = 0;
+        int b;
+        while (length < MAX_CHUNK && (b = in.read()) >= 0) {
+            chunk[length++] = (byte) b;
+            hash = (hash << 1) + GEAR[b];
+            if (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static int deflate(Deflater deflater, byte[] chunk, int length, byte[] compressed) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        return size;
+    }
+
+    private void writeChunk(String name, byte[] chunk, int length) throws IOException {
+        File file = getChunk(name);
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create " + directory);
+        }
+        File tmp = new File(directory, name + TMP_EXTENSION);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(chunk, 0, length);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can not write " + file);
+        }
+    }
+
+    /**
+     * @return The content of the chunk, inflated if it is not a raw one
+     */
+    private byte[] loadChunk(String name, int length) throws IOException {
+        File file = getChunk(name);
+        byte[] compressed = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(compressed);
+        } finally {
+            in.close();
+        }
+        if (!name.endsWith(DEFLATED_EXTENSION)) {
+            if (compressed.length != length) {
+                throw new IOException("Corrupted chunk " + name);
+            }
+            return compressed;
+        }
+
+        byte[] chunk = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int size = inflater.inflate(chunk);
+            if (inflater.needsDictionary()) {
+                inflater.setDictionary(DICTIONARY);
+                size += inflater.inflate(chunk, size, length - size);
+            }
+            if (size != length || !inflater.finished()) {
+                throw new IOException("Corrupted chunk " + name);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted chunk " + name);
+        } finally {
+            inflater.end();
+        }
+        return chunk;
+    }
+
+    private void writeManifest(Backup backup, List<byte[]> digests, List<Integer> lengths) throws IOException {
+        if (!mManifests.isDirectory() && !mManifests.mkdirs()) {
+            throw new IOException("Can not create " + mManifests);
+        }
+        File file = getManifest(backup);
+        File tmp = new File(mManifests, file.getName() + TMP_EXTENSION);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(digests.size());
+            for (int i = 0; i < digests.size(); i++) {
+                out.write(digests.get(i));
+                out.writeInt(lengths.get(i));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can not write " + file);
+        }
+    }
+
+    /**
+     * Read the file names of the chunks of the manifest, and their lengths
+     * if lengths is not null
+     */
+    private static void readManifest(File file, List<String> names, List<Integer> lengths) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_RAW) {
+                throw new IOException("Unknown manifest version " + file);
+            }
+            String extension = version == VERSION ? DEFLATED_EXTENSION : "";
+            int count = in.readInt();
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (int i = 0; i < count; i++) {
+                in.readFully(digest);
+                int length = in.readInt();
+                names.add(toHex(digest) + extension);
+                if (lengths != null) {
+                    lengths.add(length);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getChunk(String name) {
+        return new File(new File(mChunks, name.substring(0, 2)), name);
+    }
+
+    private File getManifest(Backup backup) {
+        return new File(mManifests, String.valueOf(backup.getTime()));
+    }
+
+    private static String getLegacyName(Backup backup) {
+        return String.valueOf(backup.getTime());
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Content of a backup, only one chunk is read in memory at a time
+     */
+    private class ChunksInputStream extends InputStream {
+
+        private final List<String> mNames;
+        private final List<Integer> mLengths;
+        private int mIndex;
+        private byte[] mChunk = new byte[0];
+        private int mPosition;
+
+        ChunksInputStream(List<String> names, List<Integer> lengths) {
+            super();
+            mNames = names;
+            mLengths = lengths;
+        }
+
+        /**
+         * @return false at the end of the backup
+         */
+        private boolean fill() throws IOException {
+            while (mPosition == mChunk.length) {
+                if (mIndex == mNames.size()) {
+                    return false;
+                }
+                mChunk = loadChunk(mNames.get(mIndex), mLengths.get(mIndex));
+                mPosition = 0;
+                mIndex++;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? mChunk[mPosition++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int length = Math.min(count, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, buffer, offset, length);
+            mPosition += length;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fr.simon.marquis.preferencesmanager.model.Backup;
+import fr.simon.marquis.preferencesmanager.model.File;
+import fr.simon.marquis.preferencesmanager.model.Files;
+import fr.simon.marquis.preferencesmanager.ui.App;
+
+/**
+ * Backup of the preference files of every application, or of the
+ * favorites.
+ * <p/>
+ * The files of an application are searched while the files found before
+ * are backed up by a few workers, each copying a file with its own root
+ * session before compressing it. Every file backed up is appended to a
+ * journal, so an interrupted backup resumes with the files left.
+ */
+public class BulkBackup {
+
+    public interface OnProgressListener {
+        public void onProgress(boolean running, int done, int total, int failed);
+    }
+
+    private static final String FILE_NAME = "bulk_backup";
+    private static final int VERSION = 1;
+    // Each worker holds a root session: of the sessions of the background
+    // threads, one is left for the search and the other background work
+    private static final int WORKERS = Math.max(1, App.getRootPool().getMaxBackgroundSessions() - 1);
+    // Files found ahead of the workers
+    private static final int QUEUE = WORKERS * 4;
+
+    private static BulkBackup instance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(newThreadFactory("BulkBackup"));
+    private final List<OnProgressListener> mListeners = new ArrayList<OnProgressListener>();
+    private boolean mRunning;
+    private volatile boolean mCancelled;
+    private int mDone;
+    private int mTotal;
+    private int mFailed;
+
+    private BulkBackup(Context ctx) {
+        super();
+        mContext = ctx.getApplicationContext();
+    }
+
+    public static synchronized BulkBackup getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new BulkBackup(ctx);
+        }
+        return instance;
+    }
+
+    public synchronized void addListener(OnProgressListener listener) {
+        mListeners.add(listener);
+    }
+
+    public synchronized void removeListener(OnProgressListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return true if a backup was interrupted, it is resumed by
+     * {@link #start(boolean)}
+     */
+    public synchronized boolean isInterrupted() {
+        return !mRunning && mContext.getFileStreamPath(FILE_NAME).exists();
+    }
+
+    public synchronized int getDone() {
+        return mDone;
+    }
+
+    public synchronized int getTotal() {
+        return mTotal;
+    }
+
+    public synchronized int getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Start the backup in the background, or resume the interrupted one
+     *
+     * @param favoritesOnly Ignored when a backup is resumed
+     */
+    public void start(final boolean favoritesOnly) {
+        synchronized (this) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mCancelled = false;
+            mDone = 0;
+            mTotal = 0;
+            mFailed = 0;
+        }
+        notifyListeners();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    backupAll(favoritesOnly);
+                } catch (Exception e) {
+                    Log.e(Utils.TAG, "Error while backing up every application", e);
+                } finally {
+                    synchronized (BulkBackup.this) {
+                        mRunning = false;
+                    }
+                    notifyListeners();
+                }
+                Log.d(Utils.TAG, "Backed up " + getDone() + "/" + getTotal() + " files, " + getFailed() + " failed --> " + (System.currentTimeMillis() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * Stop the backup, it can be resumed later
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    private void backupAll(boolean favoritesOnly) throws IOException {
+        Set<String> done = new HashSet<String>();
+        Boolean resumed = readJournal(done);
+        if (resumed != null) {
+            favoritesOnly = resumed;
+            Log.d(Utils.TAG, "Resuming the backup, " + done.size() + " files already backed up");
+        }
+        // Written again from the start, the interruption may have cut its end
+        final DataOutputStream journal = new DataOutputStream(mContext.openFileOutput(FILE_NAME, Context.MODE_PRIVATE));
+        journal.writeInt(VERSION);
+        journal.writeBoolean(favoritesOnly);
+        for (String path : done) {
+            journal.writeUTF(path);
+        }
+        journal.flush();
+
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, newThreadFactory("BulkBackup worker"));
+        final Semaphore slots = new Semaphore(QUEUE);
+        try {
+            for (final String packageName : getPackageNames(favoritesOnly)) {
+                if (mCancelled) {
+                    break;
+                }
+                Files files = Utils.findXmlFiles(packageName);
+                for (int i = 0; i < files.size() && !mCancelled; i++) {
+                    File file = files.get(i);
+                    final String path = file.getPath() + "/" + file.getName();
+                    synchronized (this) {
+                        mTotal++;
+                        if (done.contains(path)) {
+                            mDone++;
+                            continue;
+                        }
+                    }
+                    slots.acquire();
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                backup(packageName, path, journal);
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
+                }
+                notifyListeners();
+            }
+        } catch (InterruptedException e) {
+            mCancelled = true;
+        } finally {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                mCancelled = true;
+            }
+            journal.close();
+        }
+        if (!mCancelled) {
+            mContext.deleteFile(FILE_NAME);
+        }
+    }
+
+    /**
+     * @return The applications to back up, the same as the list of the UI,
+     * read from the PackageManager since the list is not thread safe
+     */
+    private List<String> getPackageNames(boolean favoritesOnly) {
+        List<String> packageNames = new ArrayList<String>();
+        PackageManager pm = mContext.getPackageManager();
+        List<ApplicationInfo> apps = pm == null ? null : pm.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES);
+        if (apps == null) {
+            return packageNames;
+        }
+        boolean showSystemApps = Utils.isShowSystemApps(mContext);
+        Set<String> favorites = favoritesOnly ? Utils.readFavorites(mContext) : null;
+        for (ApplicationInfo app : apps) {
+            if (!showSystemApps && (app.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                continue;
+            }
+            if (favorites != null && !favorites.contains(app.packageName)) {
+                continue;
+            }
+            packageNames.add(app.packageName);
+        }
+        return packageNames;
+    }
+
+    private void backup(String packageName, String path, DataOutputStream journal) {
+        if (mCancelled) {
+            return;
+        }
+        BackupStore store = BackupStore.getInstance(mContext);
+        Backup backup = store.newBackup();
+        boolean stored = Utils.backupFile(backup, path, mContext);
+        boolean indexed = stored && BackupIndex.getInstance(mContext).add(packageName, path, backup);
+        if (indexed) {
+            try {
+                synchronized (journal) {
+                    journal.writeUTF(path);
+                    journal.flush();
+                }
+            } catch (IOException e) {
+                Log.e(Utils.TAG, "Can not write the backup journal", e);
+            }
+        } else if (stored) {
+            store.delete(backup);
+        }
+        synchronized (this) {
+            if (indexed) {
+                mDone++;
+            } else {
+                mFailed++;
+            }
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Read the files already backed up by the interrupted backup
+     *
+     * @return Whether the interrupted backup was for the favorites only, or
+     * null if there is none
+     */
+    private Boolean readJournal(Set<String> done) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(FILE_NAME)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            boolean favoritesOnly = in.readBoolean();
+            try {
+                while (true) {
+                    done.add(in.readUTF());
+                }
+            } catch (IOException ignored) {
+                // End of the journal, or a path cut by the interruption
+            }
+            return favoritesOnly;
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not read the backup journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    private void notifyListeners() {
+        List<OnProgressListener> listeners;
+        boolean running;
+        int done;
+        int total;
+        int failed;
+        synchronized (this) {
+            listeners = new ArrayList<OnProgressListener>(mListeners);
+            running = mRunning;
+            done = mDone;
+            total = mTotal;
+            failed = mFailed;
+        }
+        for (OnProgressListener listener : listeners) {
+            listener.onProgress(running, done, total, failed);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        RootShellPool.setBackground(true);
+                        r.run();
+                    }
+                }, name);
+            }
+        };
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Streaming reader for the {@code <map>} documents written by SharedPreferences.
+ * <p/>
+ * It only understands what a preference file can contain (string, int, long,
+ * float, double, boolean, set and null values) and produces the same map as
+ * {@link XmlUtils#readMapXml(InputStream)}. The characters are read in chunks
+ * into a reusable buffer, and the same scratch builder is used for every tag,
+ * attribute and text node, so the only objects allocated are the keys and
+ * values that end up in the map. Keys and short strings are looked up in the
+ * shared {@link StringPool} first, to reuse the copies of the files already
+ * read.
+ * <p/>
+ * Nested maps, lists and arrays are rejected with an
+ * {@link XmlPullParserException}; callers can fall back to {@link XmlUtils}
+ * for these rare documents.
+ */
+public class FastXmlParser {
+
+    private static final int BUFFER_LEN = 8192;
+    private static final int EOF = -1;
+
+    private static final String TAG_MAP = "map";
+    private static final String TAG_SET = "set";
+    private static final String TAG_NULL = "null";
+    private static final String TAG_STRING = "string";
+    private static final String TAG_INT = "int";
+    private static final String TAG_LONG = "long";
+    private static final String TAG_FLOAT = "float";
+    private static final String TAG_DOUBLE = "double";
+    private static final String TAG_BOOLEAN = "boolean";
+    private static final String[] KNOWN_TAGS = new String[]{TAG_STRING, TAG_INT, TAG_BOOLEAN, TAG_LONG, TAG_FLOAT, TAG_SET, TAG_NULL, TAG_MAP, TAG_DOUBLE};
+
+    private static final String ATTR_NAME = "name";
+    private static final String ATTR_VALUE = "value";
+
+    private final char[] mBuffer = new char[BUFFER_LEN];
+    private final StringBuilder mScratch = new StringBuilder(256);
+    private final StringPool mPool = StringPool.getInstance();
+
+    private Reader mReader;
+    private XmlMapLayout mLayout;
+    private int mPos;
+    private int mLimit;
+    // Number of chars read before the current buffer
+    private int mOffset;
+
+    // State of the last start tag read
+    private String mTagName;
+    private String mNameAttribute;
+    private String mValueAttribute;
+    private boolean mEmptyTag;
+
+    /**
+     * Read a HashMap from an UTF-8 encoded InputStream.
+     *
+     * @param in The InputStream from which to read.
+     * @return HashMap The resulting map, or null for a {@code <null />} document.
+     * @see XmlUtils#readMapXml(InputStream)
+     */
+    public static HashMap<String, Object> readMapXml(InputStream in) throws XmlPullParserException, IOException {
+        return new FastXmlParser().read(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /**
+     * Read a HashMap from an in-memory document, without copying it to a byte
+     * array first.
+     *
+     * @param xml The document to read.
+     * @return HashMap The resulting map, or null for a {@code <null />} document.
+     */
+    public static HashMap<String, Object> readMapXml(String xml) throws XmlPullParserException, IOException {
+        return new FastXmlParser().read(new StringReader(xml));
+    }
+
+    /**
+     * Read a HashMap from an in-memory document, and record where each value
+     * is located in the document.
+     *
+     * @param xml    The document to read.
+     * @param layout The layout to fill, see {@link XmlMapLayout}.
+     * @return HashMap The resulting map, or null for a {@code <null />} document.
+     */
+    public static HashMap<String, Object> readMapXml(String xml, XmlMapLayout layout) throws XmlPullParserException, IOException {
+        layout.reset(xml);
+        FastXmlParser parser = new FastXmlParser();
+        parser.mLayout = layout;
+        return parser.read(new StringReader(xml));
+    }
+
+    /**
+     * Read a HashMap from a Reader. The parser can be reused for several
+     * documents to keep its buffers.
+     *
+     * @param reader The Reader from which to read.
+     * @return HashMap The resulting map, or null for a {@code <null />} document.
+     */
+    public HashMap<String, Object> read(Reader reader) throws XmlPullParserException, IOException {
+        mReader = reader;
+        mPos = 0;
+        mLimit = 0;
+        mOffset = 0;
+        try {
+            skipProlog();
+            readStartTag();
+            if (mTagName == TAG_NULL) {
+                skipEndTag();
+                return null;
+            }
+            if (mTagName != TAG_MAP) {
+                throw new XmlPullParserException("Unexpected root tag: " + mTagName);
+            }
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            if (!mEmptyTag) {
+                if (mLayout != null) {
+                    mLayout.onMapStart(position());
+                }
+                readMap(map);
+            }
+            return map;
+        } finally {
+            mReader = null;
+            mLayout = null;
+            mTagName = null;
+            mNameAttribute = null;
+            mValueAttribute = null;
+            if (mScratch.capacity() > BUFFER_LEN) {
+                mScratch.setLength(0);
+                mScratch.trimToSize();
+            }
+        }
+    }
+
+    private void readMap(HashMap<String, Object> map) throws XmlPullParserException, IOException {
+        while (true) {
+            skipText();
+            if (nextMarkup()) {
+                if (mLayout != null) {
+                    mLayout.onMapEnd(position() - 2);
+                }
+                readEndTag(TAG_MAP);
+                return;
+            }
+            final int start = position() - 1;
+            readStartTag();
+            String key = mNameAttribute;
+            if (key == null) {
+                throw new XmlPullParserException("Map value without name attribute: " + mTagName);
+            }
+            map.put(key, readValue());
+            if (mLayout != null) {
+                if (map.size() <= mLayout.size()) {
+                    // Duplicated key, only its last value is kept
+                    mLayout.invalidate();
+                }
+                mLayout.onElement(key, start, position());
+            }
+        }
+    }
+
+    private HashSet<Object> readSet() throws XmlPullParserException, IOException {
+        HashSet<Object> set = new HashSet<Object>();
+        if (mEmptyTag) {
+            return set;
+        }
+        while (true) {
+            skipText();
+            if (nextMarkup()) {
+                readEndTag(TAG_SET);
+                return set;
+            }
+            readStartTag();
+            if (mTagName == TAG_SET) {
+                throw new XmlPullParserException("Unsupported nested set");
+            }
+            set.add(readValue());
+        }
+    }
+
+    /**
+     * Read the value of the start tag that has just been consumed, up to and
+     * including its end tag.
+     */
+    private Object readValue() throws XmlPullParserException, IOException {
+        final String tag = mTagName;
+        if (tag == TAG_STRING) {
+            return mEmptyTag ? "" : readStringText();
+        } else if (tag == TAG_SET) {
+            return readSet();
+        }
+
+        final String value = mValueAttribute;
+        Object res;
+        try {
+            if (tag == TAG_NULL) {
+                res = null;
+            } else if (tag == TAG_INT) {
+                res = Integer.parseInt(requireValue());
+            } else if (tag == TAG_LONG) {
+                res = Long.valueOf(requireValue());
+            } else if (tag == TAG_FLOAT) {
+                res = Float.valueOf(requireValue());
+            } else if (tag == TAG_DOUBLE) {
+                res = Double.valueOf(requireValue());
+            } else if (tag == TAG_BOOLEAN) {
+                res = Boolean.valueOf(requireValue());
+            } else {
+                throw new XmlPullParserException("Unsupported tag: " + tag);
+            }
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException("Invalid value in <" + tag + ">: " + value);
+        }
+        if (!mEmptyTag) {
+            skipEndTag();
+        }
+        return res;
+    }
+
+    private String requireValue() throws XmlPullParserException {
+        if (mValueAttribute == null) {
+            throw new XmlPullParserException("Missing value attribute in <" + mTagName + ">");
+        }
+        return mValueAttribute;
+    }
+
+    /**
+     * Skip everything after a value tag up to its end tag. Only comments are
+     * allowed in between, like {@link XmlUtils} does.
+     */
+    private void skipEndTag() throws XmlPullParserException, IOException {
+        if (mEmptyTag) {
+            return;
+        }
+        final String tag = mTagName;
+        int c = read();
+        if (c != '<') {
+            throw new XmlPullParserException("Unexpected text in <" + tag + ">");
+        }
+        if (!nextMarkup()) {
+            throw new XmlPullParserException("Unexpected start tag in <" + tag + ">");
+        }
+        readEndTag(tag);
+    }
+
+    /**
+     * Consume the markup that follows a '&lt;' and skip comments, processing
+     * instructions and declarations.
+     *
+     * @return true if an end tag follows ("&lt;/" has been consumed), false if
+     * a start tag follows ("&lt;" has been consumed)
+     */
+    private boolean nextMarkup() throws XmlPullParserException, IOException {
+        while (true) {
+            int c = peek();
+            if (c == '/') {
+                mPos++;
+                return true;
+            } else if (c == '!') {
+                mPos++;
+                skipDeclaration();
+            } else if (c == '?') {
+                mPos++;
+                skipUntil("?>");
+            } else {
+                return false;
+            }
+            skipText();
+        }
+    }
+
+    private void skipProlog() throws XmlPullParserException, IOException {
+        // Skip an optional BOM
+        if (peek() == '\uFEFF') {
+            mPos++;
+        }
+        skipText();
+        if (nextMarkup()) {
+            throw new XmlPullParserException("Unexpected end tag");
+        }
+    }
+
+    private void skipDeclaration() throws XmlPullParserException, IOException {
+        if (peek() == '-') {
+            expect('-');
+            expect('-');
+            skipUntil("-->");
+        } else if (peek() == '[') {
+            throw new XmlPullParserException("Unexpected CDATA section");
+        } else {
+            skipUntil(">");
+        }
+    }
+
+    /**
+     * Skip text until the next '&lt;', which is consumed.
+     */
+    private void skipText() throws XmlPullParserException, IOException {
+        while (true) {
+            if (mPos >= mLimit && !fill()) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+            final char[] buffer = mBuffer;
+            final int limit = mLimit;
+            int pos = mPos;
+            while (pos < limit) {
+                if (buffer[pos++] == '<') {
+                    mPos = pos;
+                    return;
+                }
+            }
+            mPos = pos;
+        }
+    }
+
+    private void skipUntil(String end) throws XmlPullParserException, IOException {
+        final int length = end.length();
+        int matched = 0;
+        while (matched < length) {
+            int c = read();
+            if (c == EOF) {
+                throw new XmlPullParserException("Unexpected end of document, expected " + end);
+            }
+            if (c == end.charAt(matched)) {
+                matched++;
+            } else {
+                // Terminators are tiny: keep the longest prefix of end that
+                // is also a suffix of what has been read
+                final int previous = matched;
+                matched = 0;
+                for (int k = previous; k > 0; k--) {
+                    if (end.charAt(k - 1) == c && end.regionMatches(0, end, previous - k + 1, k - 1)) {
+                        matched = k;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a start tag, the leading '&lt;' being already consumed. Only the
+     * "name" and "value" attributes are kept.
+     */
+    private void readStartTag() throws XmlPullParserException, IOException {
+        mNameAttribute = null;
+        mValueAttribute = null;
+        mEmptyTag = false;
+
+        readName();
+        mTagName = tagFromScratch();
+
+        while (true) {
+            int c = skipWhitespace();
+            if (c == '>') {
+                mPos++;
+                return;
+            } else if (c == '/') {
+                mPos++;
+                expect('>');
+                mEmptyTag = true;
+                return;
+            } else if (c == EOF) {
+                throw new XmlPullParserException("Unexpected end of document in <" + mTagName + ">");
+            }
+
+            readName();
+            final int attribute = scratchEquals(ATTR_NAME) ? 1 : scratchEquals(ATTR_VALUE) ? 2 : 0;
+            skipWhitespace();
+            expect('=');
+            int quote = skipWhitespace();
+            if (quote != '"' && quote != '\'') {
+                throw new XmlPullParserException("Expected quoted attribute value in <" + mTagName + ">");
+            }
+            mPos++;
+            readAttributeValue((char) quote);
+            if (attribute == 1) {
+                mNameAttribute = mPool.intern(mScratch);
+            } else if (attribute == 2) {
+                mValueAttribute = mScratch.toString();
+            }
+        }
+    }
+
+    /**
+     * Read an end tag, the leading "&lt;/" being already consumed.
+     */
+    private void readEndTag(String expected) throws XmlPullParserException, IOException {
+        readName();
+        if (!scratchEquals(expected)) {
+            throw new XmlPullParserException("Expected " + expected + " end tag at: " + mScratch);
+        }
+        if (skipWhitespace() != '>') {
+            throw new XmlPullParserException("Malformed end tag: " + expected);
+        }
+        mPos++;
+    }
+
+    private void readName() throws XmlPullParserException, IOException {
+        final StringBuilder sb = mScratch;
+        sb.setLength(0);
+        while (true) {
+            int c = peek();
+            if (c == EOF || c == '>' || c == '/' || c == '=' || isWhitespace(c)) {
+                break;
+            }
+            sb.append((char) c);
+            mPos++;
+        }
+        if (sb.length() == 0) {
+            throw new XmlPullParserException("Expected a name");
+        }
+    }
+
+    private void readAttributeValue(char quote) throws XmlPullParserException, IOException {
+        final StringBuilder sb = mScratch;
+        sb.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == quote) {
+                return;
+            } else if (c == EOF || c == '<') {
+                throw new XmlPullParserException("Unterminated attribute value in <" + mTagName + ">");
+            } else if (c == '&') {
+                readEntity();
+            } else if (c == '\r') {
+                if (peek() == '\n') {
+                    mPos++;
+                }
+                sb.append(' ');
+            } else if (c == '\n') {
+                sb.append(' ');
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Read the content of a {@code <string>} tag up to and including its end
+     * tag. Runs of plain characters are appended straight from the buffer.
+     */
+    private String readStringText() throws XmlPullParserException, IOException {
+        final StringBuilder sb = mScratch;
+        sb.setLength(0);
+        while (true) {
+            if (mPos >= mLimit && !fill()) {
+                throw new XmlPullParserException("Unexpected end of document in <string>");
+            }
+            final char[] buffer = mBuffer;
+            final int limit = mLimit;
+            int start = mPos;
+            int pos = start;
+            char c = 0;
+            while (pos < limit) {
+                c = buffer[pos];
+                if (c == '<' || c == '&' || c == '\r') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos > start) {
+                sb.append(buffer, start, pos - start);
+            }
+            mPos = pos;
+            if (pos == limit) {
+                continue;
+            }
+            mPos++;
+            if (c == '&') {
+                readEntity();
+            } else if (c == '\r') {
+                if (peek() == '\n') {
+                    mPos++;
+                }
+                sb.append('\n');
+            } else if (peek() == '/') {
+                mPos++;
+                String value = mPool.intern(sb);
+                readEndTag(TAG_STRING);
+                return value;
+            } else if (peek() == '!') {
+                mPos++;
+                readTextDeclaration();
+            } else {
+                throw new XmlPullParserException("Unexpected start tag in <string>");
+            }
+        }
+    }
+
+    /**
+     * Comments are dropped and CDATA sections are appended as is.
+     */
+    private void readTextDeclaration() throws XmlPullParserException, IOException {
+        if (peek() != '[') {
+            skipDeclaration();
+            return;
+        }
+        for (int i = 0; i < 7; i++) {
+            expect("[CDATA[".charAt(i));
+        }
+        final StringBuilder sb = mScratch;
+        int brackets = 0;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new XmlPullParserException("Unterminated CDATA section");
+            }
+            if (c == '>' && brackets >= 2) {
+                sb.setLength(sb.length() - 2);
+                return;
+            }
+            brackets = c == ']' ? brackets + 1 : 0;
+            if (c == '\r') {
+                if (peek() == '\n') {
+                    mPos++;
+                }
+                c = '\n';
+            }
+            sb.append((char) c);
+        }
+    }
+
+    /**
+     * Decode an entity reference, the leading '&amp;' being already consumed,
+     * and append it to the scratch builder.
+     */
+    private void readEntity() throws XmlPullParserException, IOException {
+        final StringBuilder sb = mScratch;
+        if (peek() == '#') {
+            mPos++;
+            int radix = 10;
+            if (peek() == 'x') {
+                mPos++;
+                radix = 16;
+            }
+            int code = 0;
+            int digits = 0;
+            while (true) {
+                int c = read();
+                if (c == ';') {
+                    break;
+                }
+                int digit = c == EOF ? -1 : Character.digit((char) c, radix);
+                if (digit < 0 || code > Character.MAX_CODE_POINT) {
+                    throw new XmlPullParserException("Invalid character reference");
+                }
+                code = code * radix + digit;
+                digits++;
+            }
+            if (digits == 0 || code > Character.MAX_CODE_POINT) {
+                throw new XmlPullParserException("Invalid character reference");
+            }
+            if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                sb.append((char) code);
+            } else {
+                sb.append(Character.toChars(code));
+            }
+            return;
+        }
+
+        int c1 = read();
+        int c2 = read();
+        int c3 = read();
+        if (c1 == 'l' && c2 == 't' && c3 == ';') {
+            sb.append('<');
+        } else if (c1 == 'g' && c2 == 't' && c3 == ';') {
+            sb.append('>');
+        } else if (c1 == 'a' && c2 == 'm' && c3 == 'p' && read() == ';') {
+            sb.append('&');
+        } else if (c1 == 'q' && c2 == 'u' && c3 == 'o' && read() == 't' && read() == ';') {
+            sb.append('"');
+        } else if (c1 == 'a' && c2 == 'p' && c3 == 'o' && read() == 's' && read() == ';') {
+            sb.append('\'');
+        } else {
+            throw new XmlPullParserException("Unknown entity reference");
+        }
+    }
+
+    private String tagFromScratch() {
+        for (String tag : KNOWN_TAGS) {
+            if (scratchEquals(tag)) {
+                return tag;
+            }
+        }
+        return mScratch.toString();
+    }
+
+    private boolean scratchEquals(String s) {
+        final StringBuilder sb = mScratch;
+        final int length = s.length();
+        if (sb.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (sb.charAt(i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while (isWhitespace(c = peek())) {
+            mPos++;
+        }
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private void expect(char expected) throws XmlPullParserException, IOException {
+        int c = read();
+        if (c != expected) {
+            throw new XmlPullParserException("Expected '" + expected + "'" + (mTagName == null ? "" : " in <" + mTagName + ">"));
+        }
+    }
+
+    private int peek() throws IOException {
+        if (mPos >= mLimit && !fill()) {
+            return EOF;
+        }
+        return mBuffer[mPos];
+    }
+
+    private int read() throws IOException {
+        if (mPos >= mLimit && !fill()) {
+            return EOF;
+        }
+        return mBuffer[mPos++];
+    }
+
+    private int position() {
+        return mOffset + mPos;
+    }
+
+    private boolean fill() throws IOException {
+        mOffset += mLimit;
+        int count = mReader.read(mBuffer, 0, BUFFER_LEN);
+        if (count <= 0) {
+            mPos = 0;
+            mLimit = 0;
+            return false;
+        }
+        mPos = 0;
+        mLimit = count;
+        return true;
+    }
+}
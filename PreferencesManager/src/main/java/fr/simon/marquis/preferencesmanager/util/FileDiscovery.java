@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.RootFW;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.simon.marquis.preferencesmanager.model.File;
+import fr.simon.marquis.preferencesmanager.model.Files;
+
+/**
+ * Find the xml files of a directory tree with a single shell command.
+ * <p/>
+ * The output is read line by line while the command runs, and every file is
+ * reported as soon as it is parsed. {@code find} is used when available,
+ * pruning the directories that never contain preferences; otherwise the
+ * output of the toolbox {@code ls -lR} is parsed, skipping the same
+ * directories.
+ */
+public class FileDiscovery {
+
+    public interface OnFileFoundListener {
+        public void onFileFound(File file);
+    }
+
+    private static final String[] PRUNED_DIRECTORIES = {"cache", "code_cache", "lib"};
+    private static final String EXTENSION = ".xml";
+    // Toolbox ls -l line of a regular file: mode, user, group, size, date, time and name
+    private static final Pattern LS_FILE = Pattern.compile("^-\\S*\\s+\\S+\\s+\\S+\\s+\\d+\\s+\\S+\\s+\\S+\\s(.+)$");
+
+    private final String mPath;
+    private final OnFileFoundListener mListener;
+    private final String mEndMarker = "EOF:" + Long.toHexString(Double.doubleToLongBits(Math.random())) + ":EOF";
+
+    // Directory of the ls -lR section being parsed, null when it is pruned
+    private String mDirectory;
+
+    private FileDiscovery(String path, OnFileFoundListener listener) {
+        super();
+        mPath = path;
+        mListener = listener;
+    }
+
+    /**
+     * @param root     The session to run the command with.
+     * @param path     The directory to search.
+     * @param listener Notified of every file as soon as it is found, may be null.
+     * @return All the files found.
+     */
+    public static Files find(RootFW root, String path, OnFileFoundListener listener) throws IOException {
+        return new FileDiscovery(path, listener).run(root);
+    }
+
+    private Files run(RootFW root) throws IOException {
+        Files files = new Files();
+        long start = System.currentTimeMillis();
+        // Same protocol as RootFW's Shell: hold the lock, and read the output
+        // up to a marker echoed once the command is done
+        synchronized (root.lock()) {
+            Process process = root.process();
+            if (process == null) {
+                return files;
+            }
+            OutputStream out = process.getOutputStream();
+            out.write((buildCommand() + "\necho " + mEndMarker + "\n").getBytes());
+            out.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals(mEndMarker)) {
+                File file = parseLine(line);
+                if (file != null) {
+                    files.add(file);
+                    if (mListener != null) {
+                        mListener.onFileFound(file);
+                    }
+                }
+            }
+        }
+        Log.d(Utils.TAG, "Found " + files.size() + " files in " + mPath + " --> " + (System.currentTimeMillis() - start) + " ms");
+        return files;
+    }
+
+    private String buildCommand() {
+        String path = quote(mPath);
+        StringBuilder prune = new StringBuilder();
+        for (String directory : PRUNED_DIRECTORIES) {
+            prune.append(prune.length() == 0 ? "" : " -o").append(" -name ").append(directory);
+        }
+        return "if type find >/dev/null 2>&1; then"
+                + " find " + path + " \\(" + prune + " \\) -prune -o -type f -name '*" + EXTENSION + "' -print;"
+                + " else ls -lR " + path + "; fi 2>/dev/null";
+    }
+
+    private File parseLine(String line) {
+        if (line.length() == 0) {
+            return null;
+        }
+
+        // find: path of a file
+        if (line.startsWith(mPath + "/") && !line.endsWith(":")) {
+            int index = line.lastIndexOf('/');
+            if (line.endsWith(EXTENSION) && index > 0) {
+                return new File(line.substring(index + 1), line.substring(0, index));
+            }
+            return null;
+        }
+
+        // ls -lR: a new directory section starts
+        if (line.endsWith(":") && (line.equals(mPath + ":") || line.startsWith(mPath + "/"))) {
+            String directory = line.substring(0, line.length() - 1);
+            mDirectory = isPruned(directory) ? null : directory;
+            return null;
+        }
+
+        // ls -lR: entry of the current section
+        if (mDirectory != null) {
+            Matcher matcher = LS_FILE.matcher(line);
+            if (matcher.matches() && matcher.group(1).endsWith(EXTENSION)) {
+                return new File(matcher.group(1), mDirectory);
+            }
+        }
+        return null;
+    }
+
+    private boolean isPruned(String directory) {
+        String relative = directory.length() > mPath.length() ? directory.substring(mPath.length() + 1) : "";
+        for (String part : relative.split("/")) {
+            for (String pruned : PRUNED_DIRECTORIES) {
+                if (pruned.equals(part)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String quote(String str) {
+        return "'" + str.replace("'", "'\"'\"'") + "'";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Filtering of a list against a search query, shared by the adapters.
+ * <p/>
+ * The searchable texts of the items are lower-cased and trimmed once, and
+ * kept until the list changes. The query is compiled once per pass; when it
+ * is plain text extending the previous one, only the previous matches are
+ * scanned again. A pass is abandoned as soon as a newer query is typed.
+ */
+public abstract class FilterEngine<T> {
+
+    private static final int CHECK_INTERVAL = 256;
+    private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Snapshot of the list, with the normalized texts of each item
+    private List<T> mSource;
+    private int mVersion;
+    private Object[] mItems;
+    private String[][] mColumns;
+
+    // Last complete pass, for plain text queries
+    private String mLastQuery;
+    private int[] mLastMatches;
+    private int mLastCount;
+
+    /**
+     * @return The searchable texts of the item, any of them may be null
+     */
+    protected abstract String[] getColumns(T item);
+
+    /**
+     * Cancel the pass in progress, to be called when a new query is typed
+     *
+     * @return The generation of the new query
+     */
+    public int newGeneration() {
+        return mGeneration.incrementAndGet();
+    }
+
+    public boolean isCurrent(int generation) {
+        return mGeneration.get() == generation;
+    }
+
+    /**
+     * @param source     The list to filter.
+     * @param version    Changes whenever the content of the list changes.
+     * @param query      A regular expression, or plain text.
+     * @param generation Returned by {@link #newGeneration()} for this query.
+     * @return The matching items, the source itself for an empty query, or
+     * null if a newer query cancelled this pass
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> filter(List<T> source, int version, CharSequence query, int generation) {
+        if (source != mSource || version != mVersion || mItems == null) {
+            snapshot(source, version);
+        }
+
+        String q = query == null ? "" : normalize(query.toString());
+        if (q.length() == 0) {
+            return source;
+        }
+
+        boolean literal = isLiteral(q);
+        Pattern pattern = literal ? null : compile(q);
+
+        int[] candidates = null;
+        int candidatesCount = mItems.length;
+        if (literal && mLastQuery != null && q.contains(mLastQuery)) {
+            // The new matches are among the previous ones
+            candidates = mLastMatches;
+            candidatesCount = mLastCount;
+        }
+
+        int[] matches = new int[candidatesCount];
+        int count = 0;
+        for (int i = 0; i < candidatesCount; i++) {
+            if (i % CHECK_INTERVAL == 0 && !isCurrent(generation)) {
+                return null;
+            }
+            int index = candidates == null ? i : candidates[i];
+            if (matches(mColumns[index], q, pattern)) {
+                matches[count++] = index;
+            }
+        }
+
+        mLastQuery = literal ? q : null;
+        mLastMatches = matches;
+        mLastCount = count;
+
+        List<T> result = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++) {
+            result.add((T) mItems[matches[i]]);
+        }
+        return result;
+    }
+
+    private void snapshot(List<T> source, int version) {
+        Object[] items = source.toArray();
+        String[][] columns = new String[items.length][];
+        for (int i = 0; i < items.length; i++) {
+            @SuppressWarnings("unchecked")
+            String[] raw = getColumns((T) items[i]);
+            for (int j = 0; j < raw.length; j++) {
+                raw[j] = raw[j] == null ? null : normalize(raw[j]);
+            }
+            columns[i] = raw;
+        }
+        mSource = source;
+        mVersion = version;
+        mItems = items;
+        mColumns = columns;
+        mLastQuery = null;
+        mLastMatches = null;
+        mLastCount = 0;
+    }
+
+    private static boolean matches(String[] columns, String query, Pattern pattern) {
+        for (String column : columns) {
+            if (column == null) {
+                continue;
+            }
+            if (pattern == null ? column.contains(query) : pattern.matcher(column).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(String query) {
+        for (int i = 0; i < query.length(); i++) {
+            if (REGEX_CHARS.indexOf(query.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String str) {
+        return str.toLowerCase(Locale.getDefault()).trim();
+    }
+
+    /**
+     * @return The case insensitive pattern of the query, matching it as
+     * plain text if it is not a valid regular expression, or null if the
+     * query is empty
+     */
+    public static Pattern compile(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return null;
+        }
+        try {
+            return Pattern.compile(query, Pattern.CASE_INSENSITIVE);
+        } catch (PatternSyntaxException e) {
+            return Pattern.compile(Pattern.quote(query), Pattern.CASE_INSENSITIVE);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import fr.simon.marquis.preferencesmanager.model.AppEntry;
+
+/**
+ * Icons of the applications, decoded on demand in the background at the
+ * size of the list rows.
+ * <p/>
+ * Icons are keyed by package name and version code. They are kept in a
+ * memory cache bounded in bytes, and in a disk cache in the app's cache
+ * directory, so they are not decoded from the apks again after a cold start.
+ * An icon is decoded once even if it is asked again while being decoded.
+ */
+public class IconLoader {
+
+    // Size of the icon in row_application, padding excluded
+    private static final int ICON_SIZE_DP = 40;
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int THREADS = 2;
+    private static final boolean DISK_CACHE = true;
+    private static final String DISK_CACHE_DIR = "icons";
+    private static final String DISK_CACHE_EXTENSION = ".png";
+    private static final String DISK_CACHE_TMP_EXTENSION = ".tmp";
+
+    private static IconLoader instance;
+
+    private final Context mContext;
+    private final int mSize;
+    private final File mDiskCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> mCache;
+    // Keys of the icons being decoded
+    private final Set<String> mLoading = new HashSet<String>();
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "IconLoader");
+        }
+    });
+
+    private IconLoader(Context ctx) {
+        super();
+        mContext = ctx.getApplicationContext();
+        mSize = Math.round(ICON_SIZE_DP * mContext.getResources().getDisplayMetrics().density);
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_BYTES);
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+
+        File dir = DISK_CACHE ? new File(mContext.getCacheDir(), DISK_CACHE_DIR) : null;
+        mDiskCache = dir != null && (dir.isDirectory() || dir.mkdirs()) ? dir : null;
+    }
+
+    public static synchronized IconLoader getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new IconLoader(ctx);
+        }
+        return instance;
+    }
+
+    public interface OnIconLoadedListener {
+        public void onIconLoaded(Drawable icon);
+    }
+
+    /**
+     * Give the icon of the application to the listener, on the main thread.
+     * It is called right away if the icon is cached, or once it is decoded
+     * in the background.
+     */
+    public void loadIcon(final AppEntry entry, final OnIconLoadedListener listener) {
+        Bitmap bitmap = mCache.get(getKey(entry));
+        if (bitmap != null) {
+            listener.onIconLoaded(new BitmapDrawable(mContext.getResources(), bitmap));
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = getBitmap(entry);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onIconLoaded(new BitmapDrawable(mContext.getResources(), bitmap));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Display the icon of the application in the view, decoding it in the
+     * background if it is not cached. The decoding is skipped if the view
+     * is recycled for another application in the meantime.
+     */
+    public void loadIcon(final AppEntry entry, ImageView view) {
+        final String key = getKey(entry);
+        view.setTag(key);
+        Bitmap bitmap = mCache.get(key);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null) {
+            return;
+        }
+
+        final WeakReference<ImageView> reference = new WeakReference<ImageView>(view);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isWaiting(reference, key)) {
+                    return;
+                }
+                final Bitmap bitmap = getBitmap(entry);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isWaiting(reference, key)) {
+                            reference.get().setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static boolean isWaiting(WeakReference<ImageView> reference, String key) {
+        ImageView view = reference.get();
+        return view != null && key.equals(view.getTag());
+    }
+
+    private static String getKey(AppEntry entry) {
+        return entry.getPackageName() + "_" + entry.getVersionCode();
+    }
+
+    private Bitmap getBitmap(AppEntry entry) {
+        String key = getKey(entry);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        // Wait for the decoding of the same icon by another thread
+        boolean interrupted = false;
+        synchronized (mLoading) {
+            while (mLoading.contains(key)) {
+                try {
+                    mLoading.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            bitmap = mCache.get(key);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            if (!interrupted) {
+                mLoading.add(key);
+            }
+        }
+        if (interrupted) {
+            // Decoded without the disk cache, which the other thread writes
+            Thread.currentThread().interrupt();
+            return decode(entry);
+        }
+
+        try {
+            bitmap = load(entry, key);
+            mCache.put(key, bitmap);
+            return bitmap;
+        } finally {
+            synchronized (mLoading) {
+                mLoading.remove(key);
+                mLoading.notifyAll();
+            }
+        }
+    }
+
+    private Bitmap load(AppEntry entry, String key) {
+        Bitmap bitmap = null;
+        File file = mDiskCache == null ? null : new File(mDiskCache, key + DISK_CACHE_EXTENSION);
+        if (file != null && file.isFile()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+        }
+        if (bitmap == null) {
+            bitmap = decode(entry);
+            if (file != null) {
+                writeToDisk(entry.getPackageName(), file, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the icon resource with the largest sample size keeping it
+     * bigger than the rows, or draw the drawable if it is not a bitmap
+     */
+    private Bitmap decode(AppEntry entry) {
+        PackageManager pm = mContext.getPackageManager();
+        ApplicationInfo info = entry.loadApplicationInfo(mContext);
+        if (pm != null && info != null && info.icon != 0 && new File(info.sourceDir).exists()) {
+            try {
+                Resources res = pm.getResourcesForApplication(info);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeResource(res, info.icon, options);
+                if (options.outWidth > 0 && options.outHeight > 0) {
+                    int sampleSize = 1;
+                    while (options.outWidth / (sampleSize * 2) >= mSize && options.outHeight / (sampleSize * 2) >= mSize) {
+                        sampleSize *= 2;
+                    }
+                    options.inSampleSize = sampleSize;
+                    options.inJustDecodeBounds = false;
+                    Bitmap bitmap = BitmapFactory.decodeResource(res, info.icon, options);
+                    if (bitmap != null) {
+                        return scale(bitmap);
+                    }
+                }
+            } catch (PackageManager.NameNotFoundException ignored) {
+            } catch (Resources.NotFoundException ignored) {
+            }
+        }
+        return draw(entry.loadIcon(mContext));
+    }
+
+    private Bitmap scale(Bitmap bitmap) {
+        if (bitmap.getWidth() == mSize && bitmap.getHeight() == mSize) {
+            return bitmap;
+        }
+        return draw(new BitmapDrawable(mContext.getResources(), bitmap));
+    }
+
+    private Bitmap draw(Drawable drawable) {
+        Bitmap bitmap = Bitmap.createBitmap(mSize, mSize, Bitmap.Config.ARGB_8888);
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width > 0 && height > 0 && width != height) {
+            // Keep the aspect ratio, centered
+            int w = width > height ? mSize : mSize * width / height;
+            int h = width > height ? mSize * height / width : mSize;
+            drawable.setBounds((mSize - w) / 2, (mSize - h) / 2, (mSize + w) / 2, (mSize + h) / 2);
+        } else {
+            drawable.setBounds(0, 0, mSize, mSize);
+        }
+        drawable.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    private static void writeToDisk(final String packageName, File file, Bitmap bitmap) {
+        // Icons of the previous versions, and the ones left half written
+        File[] old = file.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                if (filename.endsWith(DISK_CACHE_TMP_EXTENSION)) {
+                    filename = filename.substring(0, filename.length() - DISK_CACHE_TMP_EXTENSION.length());
+                }
+                if (!filename.startsWith(packageName + "_") || !filename.endsWith(DISK_CACHE_EXTENSION)) {
+                    return false;
+                }
+                // Package names may contain '_', the version code may not
+                String version = filename.substring(packageName.length() + 1, filename.length() - DISK_CACHE_EXTENSION.length());
+                return version.matches("-?\\d+");
+            }
+        });
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        }
+
+        // Written next to the icon then renamed, so a killed process does
+        // not leave a truncated icon behind
+        File tmp = new File(file.getPath() + DISK_CACHE_TMP_EXTENSION);
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(tmp);
+            written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not cache the icon " + file.getName(), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written || !tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.RootFW;
+import com.spazedog.lib.rootfw.container.Data;
+import com.spazedog.lib.rootfw.container.ShellResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import fr.simon.marquis.preferencesmanager.model.File;
+import fr.simon.marquis.preferencesmanager.model.Files;
+import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
+import fr.simon.marquis.preferencesmanager.model.SearchHit;
+import fr.simon.marquis.preferencesmanager.ui.App;
+
+/**
+ * Inverted index of the keys and values of the preference files of every
+ * installed app.
+ * <p/>
+ * Keys and values are split into lower case tokens, and a query matches the
+ * preferences containing a token starting with each of its words. The index
+ * is saved in the app's private storage, and updated in the background, at
+ * most once a minute: a file is only read again when its {@code ls -l} line
+ * (size and modification time) changed.
+ * <p/>
+ * That line only has a minute resolution, so the md5 of a file is kept until
+ * a pass a minute after it was read checked it, which catches the writes made
+ * in the same minute. Packages which were not updated since the last pass are
+ * not searched again, only their known directories and shared_prefs are
+ * listed: a new file elsewhere is found when the app is updated.
+ */
+public class PreferenceIndex {
+
+    public interface OnIndexChangedListener {
+        public void onIndexChanged(boolean indexing, int files);
+    }
+
+    private static final String FILE_NAME = "preference_index";
+    private static final int VERSION = 2;
+    private static final long MIN_INTERVAL = 60 * 1000;
+    private static final String SHARED_PREFS = "/shared_prefs";
+    private static final int CHECK_UNCHANGED = 0;
+    private static final int CHECK_SETTLED = 1;
+    private static final int CHECK_CHANGED = 2;
+    private static final int MAX_LENGTH = 512;
+    private static final int MAX_HITS = 200;
+
+    private static PreferenceIndex instance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    RootShellPool.setBackground(true);
+                    r.run();
+                }
+            }, "PreferenceIndex");
+        }
+    });
+
+    // Indexed files, by full path
+    private final Map<String, Document> mDocuments = new HashMap<String, Document>();
+    private final TreeMap<String, List<Posting>> mPostings = new TreeMap<String, List<Posting>>();
+    private final List<OnIndexChangedListener> mListeners = new ArrayList<OnIndexChangedListener>();
+    // Files found at the last pass, by package, only used by the indexing thread
+    private final Map<String, Known> mKnown = new HashMap<String, Known>();
+    private boolean mLoaded;
+    private boolean mIndexing;
+    private long mLastUpdate;
+
+    private PreferenceIndex(Context ctx) {
+        super();
+        mContext = ctx.getApplicationContext();
+    }
+
+    public static synchronized PreferenceIndex getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new PreferenceIndex(ctx);
+        }
+        return instance;
+    }
+
+    public synchronized void addListener(OnIndexChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public synchronized void removeListener(OnIndexChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized boolean isIndexing() {
+        return mIndexing;
+    }
+
+    public synchronized int size() {
+        return mDocuments.size();
+    }
+
+    /**
+     * Update the index in the background, unless it is already being updated
+     * or was updated less than a minute ago
+     */
+    public void update() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (mIndexing || (now - mLastUpdate < MIN_INTERVAL && now >= mLastUpdate)) {
+                return;
+            }
+            mIndexing = true;
+            mLastUpdate = now;
+        }
+        notifyListeners();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    if (!mLoaded) {
+                        load();
+                        mLoaded = true;
+                        notifyListeners();
+                    }
+                    if (index()) {
+                        save();
+                    }
+                } catch (Exception e) {
+                    Log.e(Utils.TAG, "Error while indexing the preferences", e);
+                } finally {
+                    synchronized (PreferenceIndex.this) {
+                        mIndexing = false;
+                        mLastUpdate = System.currentTimeMillis();
+                    }
+                    notifyListeners();
+                }
+                Log.d(Utils.TAG, "Indexed " + size() + " files --> " + (System.currentTimeMillis() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * @return The preferences whose key or value contain a token starting
+     * with each word of the query, sorted by app, file and key
+     */
+    public synchronized List<SearchHit> search(String query) {
+        List<SearchHit> hits = new ArrayList<SearchHit>();
+        Set<Posting> matches = null;
+        for (String token : tokenize(query)) {
+            Set<Posting> tokenMatches = new HashSet<Posting>();
+            SortedMap<String, List<Posting>> range = mPostings.subMap(token, token + Character.MAX_VALUE);
+            for (List<Posting> postings : range.values()) {
+                tokenMatches.addAll(postings);
+            }
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.retainAll(tokenMatches);
+            }
+            if (matches.isEmpty()) {
+                return hits;
+            }
+        }
+        if (matches == null) {
+            return hits;
+        }
+        for (Posting posting : matches) {
+            Document document = posting.document;
+            hits.add(new SearchHit(document.packageName, document.path, document.keys[posting.entry], document.values[posting.entry]));
+        }
+        Collections.sort(hits);
+        return hits.size() > MAX_HITS ? new ArrayList<SearchHit>(hits.subList(0, MAX_HITS)) : hits;
+    }
+
+    /**
+     * @return true if the index changed
+     */
+    private boolean index() {
+        PackageManager pm = mContext.getPackageManager();
+        if (pm == null || !App.getRootPool().isConnected()) {
+            return false;
+        }
+        List<PackageInfo> packages = pm.getInstalledPackages(0);
+        if (packages == null) {
+            return false;
+        }
+
+        boolean showSystemApps = Utils.isShowSystemApps(mContext);
+        boolean changed = false;
+        Set<String> paths = new HashSet<String>();
+        Set<String> packageNames = new HashSet<String>();
+        for (PackageInfo info : packages) {
+            ApplicationInfo app = info.applicationInfo;
+            if (app == null || (!showSystemApps && (app.flags & ApplicationInfo.FLAG_SYSTEM) != 0)) {
+                continue;
+            }
+            packageNames.add(info.packageName);
+            Known known = mKnown.get(info.packageName);
+            Files files = null;
+            Map<String, String> fingerprints = null;
+            if (known != null && known.lastUpdateTime == info.lastUpdateTime) {
+                files = known.files;
+                fingerprints = fingerprint(files, Utils.BASE_PATH + info.packageName + SHARED_PREFS);
+            }
+            if (fingerprints == null) {
+                files = Utils.findXmlFiles(info.packageName);
+                fingerprints = files.size() == 0 ? new HashMap<String, String>() : fingerprint(files, null);
+                mKnown.put(info.packageName, new Known(info.lastUpdateTime, files));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                String path = file.getPath() + "/" + file.getName();
+                paths.add(path);
+                String fingerprint = fingerprints.get(path);
+                Document previous;
+                synchronized (this) {
+                    previous = mDocuments.get(path);
+                }
+                if (previous != null && fingerprint != null && fingerprint.equals(previous.fingerprint)) {
+                    if (previous.md5 == null) {
+                        continue;
+                    }
+                    int check = check(previous);
+                    if (check != CHECK_CHANGED) {
+                        changed |= check == CHECK_SETTLED;
+                        continue;
+                    }
+                }
+
+                Document document = read(info.packageName, path, fingerprint);
+                synchronized (this) {
+                    if (previous != null) {
+                        remove(previous);
+                    }
+                    if (document != null) {
+                        add(document);
+                    }
+                }
+                changed = true;
+            }
+            notifyListeners();
+        }
+        mKnown.keySet().retainAll(packageNames);
+
+        // Uninstalled apps and deleted files
+        synchronized (this) {
+            Iterator<Map.Entry<String, Document>> it = mDocuments.entrySet().iterator();
+            while (it.hasNext()) {
+                Document document = it.next().getValue();
+                if (!paths.contains(document.path)) {
+                    it.remove();
+                    removePostings(document);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compare the md5 of a file whose ls -l line did not change with the one
+     * it had when it was read: a write in the same minute keeps the line
+     *
+     * @return CHECK_SETTLED when it did not change and was read more than a
+     * minute ago, so its line will change with the next write
+     */
+    private int check(Document document) {
+        String md5 = App.getRootPool().md5sum(document.path);
+        if (md5 != null && !md5.equals(document.md5)) {
+            return CHECK_CHANGED;
+        }
+        long age = System.currentTimeMillis() - document.time;
+        if (age >= MIN_INTERVAL || age < 0) {
+            document.md5 = null;
+            return CHECK_SETTLED;
+        }
+        return CHECK_UNCHANGED;
+    }
+
+    /**
+     * @param sharedPrefs Listed too when not null, and every listing is then
+     *                    checked against the files
+     * @return The ls -l line of each file, by full path, with one command
+     * per directory in a single session, or null if the listings were checked
+     * and hold other xml files or miss some of the files
+     */
+    private Map<String, String> fingerprint(final Files files, String sharedPrefs) {
+        final Map<String, String> fingerprints = new HashMap<String, String>();
+        // ls -l prints the bare names, so they are only matched within their directory
+        final Map<String, List<String>> directories = new LinkedHashMap<String, List<String>>();
+        if (sharedPrefs != null) {
+            directories.put(sharedPrefs, new ArrayList<String>());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            List<String> names = directories.get(file.getPath());
+            if (names == null) {
+                names = new ArrayList<String>();
+                directories.put(file.getPath(), names);
+            }
+            names.add(file.getName());
+        }
+        Map<String, String[]> listings = App.getRootPool().execute(new RootShellPool.Command<Map<String, String[]>>() {
+            @Override
+            public Map<String, String[]> run(RootFW root) {
+                Map<String, String[]> listings = new HashMap<String, String[]>();
+                for (String directory : directories.keySet()) {
+                    ShellResult result = root.shell.execute("ls -l '" + directory.replace("'", "'\"'\"'") + "'");
+                    if (result != null && result.output() != null) {
+                        listings.put(directory, result.output().raw());
+                    }
+                }
+                return listings;
+            }
+        });
+        if (listings == null) {
+            return sharedPrefs == null ? fingerprints : null;
+        }
+        for (Map.Entry<String, List<String>> directory : directories.entrySet()) {
+            String[] lines = listings.get(directory.getKey());
+            if (lines == null) {
+                if (sharedPrefs != null) {
+                    return null;
+                }
+                continue;
+            }
+            for (String line : lines) {
+                // The longest name, "b a.xml" is listed with a line ending like "a.xml"
+                String match = null;
+                for (String name : directory.getValue()) {
+                    if (line.endsWith(" " + name) && (match == null || name.length() > match.length())) {
+                        match = name;
+                    }
+                }
+                if (match != null) {
+                    fingerprints.put(directory.getKey() + "/" + match, line);
+                } else if (sharedPrefs != null && line.startsWith("-") && line.endsWith(".xml")) {
+                    // A new file
+                    return null;
+                }
+            }
+        }
+        // A deleted file
+        return sharedPrefs != null && fingerprints.size() < files.size() ? null : fingerprints;
+    }
+
+    private Document read(String packageName, final String path, String fingerprint) {
+        final String[] md5 = new String[1];
+        Data data = App.getRootPool().execute(new RootShellPool.Command<Data>() {
+            @Override
+            public Data run(RootFW root) {
+                // Before the read: a write in between makes the next check read it again
+                md5[0] = root.file.md5sum(path);
+                return root.file.read(path);
+            }
+        });
+        if (data == null) {
+            return null;
+        }
+        Map<String, Object> map;
+        try {
+            map = PreferenceFile.readMapXml(data.toString());
+        } catch (Exception e) {
+            return null;
+        }
+        if (map == null) {
+            return null;
+        }
+        Document document = new Document(packageName, path, fingerprint == null ? "" : fingerprint, map.size());
+        document.time = System.currentTimeMillis();
+        document.md5 = md5[0];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            document.keys[i] = truncate(entry.getKey());
+            document.values[i] = truncate(entry.getValue() == null ? "" : entry.getValue().toString());
+            i++;
+        }
+        return document;
+    }
+
+    private void add(Document document) {
+        mDocuments.put(document.path, document);
+        for (int i = 0; i < document.keys.length; i++) {
+            Posting posting = new Posting(document, i);
+            Set<String> tokens = new HashSet<String>(tokenize(document.keys[i]));
+            tokens.addAll(tokenize(document.values[i]));
+            for (String token : tokens) {
+                List<Posting> postings = mPostings.get(token);
+                if (postings == null) {
+                    postings = new ArrayList<Posting>(2);
+                    mPostings.put(token, postings);
+                }
+                postings.add(posting);
+            }
+        }
+    }
+
+    private void remove(Document document) {
+        mDocuments.remove(document.path);
+        removePostings(document);
+    }
+
+    private void removePostings(Document document) {
+        Set<String> tokens = new HashSet<String>();
+        for (int i = 0; i < document.keys.length; i++) {
+            tokens.addAll(tokenize(document.keys[i]));
+            tokens.addAll(tokenize(document.values[i]));
+        }
+        for (String token : tokens) {
+            List<Posting> postings = mPostings.get(token);
+            if (postings == null) {
+                continue;
+            }
+            Iterator<Posting> it = postings.iterator();
+            while (it.hasNext()) {
+                if (it.next().document == document) {
+                    it.remove();
+                }
+            }
+            if (postings.isEmpty()) {
+                mPostings.remove(token);
+            }
+        }
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(FILE_NAME)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Document document = new Document(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt());
+                document.time = in.readLong();
+                String md5 = in.readUTF();
+                document.md5 = md5.length() == 0 ? null : md5;
+                for (int j = 0; j < document.keys.length; j++) {
+                    document.keys[j] = in.readUTF();
+                    document.values[j] = in.readUTF();
+                }
+                synchronized (this) {
+                    add(document);
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not load the preference index", e);
+            synchronized (this) {
+                mDocuments.clear();
+                mPostings.clear();
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        List<Document> documents;
+        synchronized (this) {
+            documents = new ArrayList<Document>(mDocuments.values());
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(mContext.openFileOutput(FILE_NAME, Context.MODE_PRIVATE)));
+            out.writeInt(VERSION);
+            out.writeInt(documents.size());
+            for (Document document : documents) {
+                out.writeUTF(document.packageName);
+                out.writeUTF(document.path);
+                out.writeUTF(document.fingerprint);
+                out.writeInt(document.keys.length);
+                out.writeLong(document.time);
+                out.writeUTF(document.md5 == null ? "" : document.md5);
+                for (int j = 0; j < document.keys.length; j++) {
+                    out.writeUTF(document.keys[j]);
+                    out.writeUTF(document.values[j]);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(Utils.TAG, "Can not save the preference index", e);
+            mContext.deleteFile(FILE_NAME);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void notifyListeners() {
+        final List<OnIndexChangedListener> listeners;
+        final boolean indexing;
+        final int files;
+        synchronized (this) {
+            listeners = new ArrayList<OnIndexChangedListener>(mListeners);
+            indexing = mIndexing;
+            files = mDocuments.size();
+        }
+        for (OnIndexChangedListener listener : listeners) {
+            listener.onIndexChanged(indexing, files);
+        }
+    }
+
+    private static String truncate(String str) {
+        return str.length() > MAX_LENGTH ? str.substring(0, MAX_LENGTH) : str;
+    }
+
+    private static List<String> tokenize(String str) {
+        List<String> tokens = new ArrayList<String>();
+        if (str == null) {
+            return tokens;
+        }
+        String lower = str.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letterOrDigit = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letterOrDigit && start < 0) {
+                start = i;
+            } else if (!letterOrDigit && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static final class Document {
+        private final String packageName;
+        private final String path;
+        private final String fingerprint;
+        private final String[] keys;
+        private final String[] values;
+        // When it was read, and its md5 until a check a minute later, only
+        // used by the indexing thread
+        private long time;
+        private String md5;
+
+        private Document(String packageName, String path, String fingerprint, int size) {
+            this.packageName = packageName;
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.keys = new String[size];
+            this.values = new String[size];
+        }
+    }
+
+    private static final class Known {
+        private final long lastUpdateTime;
+        private final Files files;
+
+        private Known(long lastUpdateTime, Files files) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.files = files;
+        }
+    }
+
+    private static final class Posting {
+        private final Document document;
+        private final int entry;
+
+        private Posting(Document document, int entry) {
+            this.document = document;
+            this.entry = entry;
+        }
+    }
+}
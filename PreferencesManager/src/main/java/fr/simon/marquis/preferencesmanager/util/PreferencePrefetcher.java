@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.container.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
+import fr.simon.marquis.preferencesmanager.ui.App;
+
+/**
+ * Read and parse the preference files of a package before their tab is
+ * shown, so swiping between tabs does not wait for a root read.
+ * <p/>
+ * The files are loaded by distance to the current tab: the tab itself, its
+ * neighbours, then the rest. A loaded file is handed over to the first
+ * fragment asking for it and leaves the cache, the files not taken yet are
+ * kept within a memory budget: it is checked before each load, and once it
+ * is used the next files wait until one is taken.
+ */
+public class PreferencePrefetcher {
+
+    // Leave a root session of the pool for the other reads
+    private static final int THREADS = 2;
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    // Slots of the map and of the layout, and the headers of the key and
+    // value objects, rounded up
+    private static final int ENTRY_BYTES = 256;
+    // Files changed by their application after that are read again
+    private static final long MAX_AGE = 30 * 1000;
+
+    private static PreferencePrefetcher instance;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    RootShellPool.setBackground(true);
+                    r.run();
+                }
+            }, "PreferencePrefetcher");
+        }
+    });
+    private final int mMaxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_BYTES);
+
+    private String mPackageName;
+    // Full paths in the order of the tabs
+    private final List<String> mFiles = new ArrayList<String>();
+    private final Set<String> mPending = new HashSet<String>();
+    // Loads of the current generation only
+    private final Set<String> mLoading = new HashSet<String>();
+    private final Map<String, Prefetched> mCache = new HashMap<String, Prefetched>();
+    private int mCurrent;
+    private int mBytes;
+    // Incremented by clear(), to drop the loads started before
+    private int mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    private static final class Prefetched {
+        private final PreferenceFile file;
+        private final int bytes;
+        private final long time;
+
+        private Prefetched(PreferenceFile file, int bytes) {
+            this.file = file;
+            this.bytes = bytes;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private PreferencePrefetcher() {
+        super();
+    }
+
+    public static synchronized PreferencePrefetcher getInstance() {
+        if (instance == null) {
+            instance = new PreferencePrefetcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Forget the files of another package
+     */
+    public synchronized void start(String packageName) {
+        if (!packageName.equals(mPackageName)) {
+            clear();
+            mPackageName = packageName;
+        }
+    }
+
+    /**
+     * Prefetch a file, the files are added in the order of the tabs
+     */
+    public synchronized void add(String fullPath) {
+        if (mFiles.contains(fullPath)) {
+            return;
+        }
+        mFiles.add(fullPath);
+        mPending.add(fullPath);
+        schedule();
+    }
+
+    /**
+     * Load the files around this tab first
+     */
+    public synchronized void setCurrent(int position) {
+        mCurrent = position;
+        schedule();
+    }
+
+    /**
+     * @return The file if it has been loaded, without waiting; it is removed
+     * from the cache
+     */
+    public synchronized PreferenceFile poll(String fullPath) {
+        Prefetched prefetched = mCache.remove(fullPath);
+        if (prefetched == null) {
+            return null;
+        }
+        mBytes -= prefetched.bytes;
+        schedule();
+        if (System.currentTimeMillis() - prefetched.time > MAX_AGE) {
+            return null;
+        }
+        mHits++;
+        return prefetched.file;
+    }
+
+    /**
+     * Take the file, waiting for it if it is being loaded. A file not loaded
+     * yet is not prefetched anymore, the caller reads it.
+     *
+     * @return The file, or null if the caller has to read it
+     */
+    public synchronized PreferenceFile take(String fullPath) {
+        mPending.remove(fullPath);
+        while (mLoading.contains(fullPath)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        PreferenceFile file = poll(fullPath);
+        if (file == null) {
+            mMisses++;
+        }
+        return file;
+    }
+
+    /**
+     * Drop the files loaded and the files to load
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mPackageName = null;
+        mFiles.clear();
+        mPending.clear();
+        // The loads started before neither wait for a thread nor are waited for
+        mLoading.clear();
+        mCache.clear();
+        mBytes = 0;
+        mCurrent = 0;
+        notifyAll();
+    }
+
+    /**
+     * Start loading the pending files closest to the current tab, while
+     * there is a free thread and the budget is not used
+     */
+    private void schedule() {
+        while (mLoading.size() < THREADS && mBytes < mMaxBytes && !mPending.isEmpty()) {
+            String next = null;
+            int distance = Integer.MAX_VALUE;
+            for (int i = 0; i < mFiles.size(); i++) {
+                String fullPath = mFiles.get(i);
+                if (Math.abs(i - mCurrent) < distance && mPending.contains(fullPath)) {
+                    next = fullPath;
+                    distance = Math.abs(i - mCurrent);
+                }
+            }
+            mPending.remove(next);
+            mLoading.add(next);
+            final String fullPath = next;
+            final int generation = mGeneration;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(fullPath, generation);
+                }
+            });
+        }
+    }
+
+    private void load(String fullPath, int generation) {
+        long start = System.currentTimeMillis();
+        Prefetched prefetched = null;
+        try {
+            Data data = App.getRootPool().read(fullPath);
+            String xml = data == null ? null : data.toString();
+            if (xml != null) {
+                PreferenceFile file = PreferenceFile.fromXml(xml);
+                // The layout keeps the document, the keys and values are
+                // copied from it, and each entry has its slots and objects
+                prefetched = new Prefetched(file, xml.length() * 4 + file.getList().size() * ENTRY_BYTES);
+            }
+        } catch (Exception e) {
+            Log.e(Utils.TAG, "Error while prefetching " + fullPath, e);
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // The same file may be loading again since clear()
+                return;
+            }
+            mLoading.remove(fullPath);
+            if (prefetched != null) {
+                mCache.put(fullPath, prefetched);
+                mBytes += prefetched.bytes;
+            }
+            Log.d(Utils.TAG, "Prefetched " + fullPath + " --> " + (System.currentTimeMillis() - start) + " ms " + this);
+            notifyAll();
+            schedule();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreferencePrefetcher{cached=" + mCache.size() + ", bytes=" + mBytes + "/" + mMaxBytes + ", pending=" + mPending.size() + ", loading=" + mLoading.size() + ", hits=" + mHits + ", misses=" + mMisses + "}";
+    }
+}
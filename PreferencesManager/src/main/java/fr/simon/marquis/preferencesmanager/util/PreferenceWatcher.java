@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.RootFW;
+import com.spazedog.lib.rootfw.container.Data;
+import com.spazedog.lib.rootfw.container.ShellResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fr.simon.marquis.preferencesmanager.model.PreferenceFile;
+import fr.simon.marquis.preferencesmanager.ui.App;
+
+/**
+ * Watch the preference files displayed, to follow the changes made by their
+ * application while it runs.
+ * <p/>
+ * When the device has inotifywait, a dedicated root session streams the
+ * writes in the directories of the watched files, and only those files are
+ * checked. Otherwise the files are polled: each tick lists them with
+ * {@code ls -l} in one root session, and only the files whose line changed
+ * are hashed, and read and parsed again if their md5 changed. Every
+ * {@link #VERIFY_TICKS} ticks all of them are hashed, the line has a minute
+ * resolution.
+ */
+public class PreferenceWatcher {
+
+    public interface OnFileChangedListener {
+        /**
+         * Called on the main thread
+         *
+         * @param readTime The {@link System#nanoTime()} before the file was
+         *                 read, to ignore contents older than a save
+         */
+        public void onFileChanged(String fullPath, PreferenceFile file, long readTime);
+    }
+
+    private static final String KEY_ENABLED = "WATCH_FILES";
+    private static final long INTERVAL = 1000;
+    private static final int VERIFY_TICKS = 10;
+
+    private static PreferenceWatcher instance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, OnFileChangedListener> mListeners = new HashMap<String, OnFileChangedListener>();
+    // Files reported by inotifywait since the last poll
+    private final Set<String> mDirty = new HashSet<String>();
+    // Polls never overlap: a single thread for the lifetime of the watcher
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    RootShellPool.setBackground(true);
+                    r.run();
+                }
+            }, "PreferenceWatcher");
+        }
+    });
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                poll();
+            } catch (Exception e) {
+                Log.e(Utils.TAG, "Error while watching the preference files", e);
+            }
+        }
+    };
+    private boolean mEnabled;
+    private ScheduledFuture<?> mTask;
+
+    // Only used by the polling thread
+    private final Map<String, String> mLines = new HashMap<String, String>();
+    private final Map<String, String> mHashes = new HashMap<String, String>();
+    private Stream mStream;
+    private boolean mStreamUnavailable;
+    private int mTicks;
+
+    private PreferenceWatcher(Context ctx) {
+        super();
+        mContext = ctx.getApplicationContext();
+        mEnabled = PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(KEY_ENABLED, false);
+    }
+
+    public static synchronized PreferenceWatcher getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new PreferenceWatcher(ctx);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Start or stop polling the watched files, the choice is remembered
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putBoolean(KEY_ENABLED, enabled).commit();
+        update();
+    }
+
+    /**
+     * Report the changes of the file while watching is enabled
+     */
+    public synchronized void watch(String fullPath, OnFileChangedListener listener) {
+        mListeners.put(fullPath, listener);
+        update();
+    }
+
+    public synchronized void unwatch(String fullPath) {
+        mListeners.remove(fullPath);
+        update();
+    }
+
+    /**
+     * Poll only while there is something to watch, the last poll stops the
+     * stream
+     */
+    private void update() {
+        boolean poll = mEnabled && !mListeners.isEmpty();
+        if (poll && mTask == null) {
+            mTask = mExecutor.scheduleWithFixedDelay(mPoll, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        } else if (!poll && mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+            mExecutor.execute(mPoll);
+        }
+    }
+
+    private void poll() {
+        final Map<String, OnFileChangedListener> listeners;
+        final Set<String> dirty;
+        synchronized (this) {
+            listeners = mTask == null ? new HashMap<String, OnFileChangedListener>() : new HashMap<String, OnFileChangedListener>(mListeners);
+            dirty = new HashSet<String>(mDirty);
+            mDirty.clear();
+        }
+        mLines.keySet().retainAll(listeners.keySet());
+        mHashes.keySet().retainAll(listeners.keySet());
+        boolean streaming = stream(listeners.keySet());
+
+        final boolean verify = ++mTicks % VERIFY_TICKS == 0;
+        final List<String> paths = new ArrayList<String>();
+        for (String fullPath : listeners.keySet()) {
+            if (!streaming || verify || dirty.contains(fullPath) || !mHashes.containsKey(fullPath)) {
+                paths.add(fullPath);
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        final long readTime = System.nanoTime();
+        Map<String, String> changed = App.getRootPool().execute(new RootShellPool.Command<Map<String, String>>() {
+            @Override
+            public Map<String, String> run(RootFW root) {
+                Map<String, String> lines = list(root, paths);
+                Map<String, String> contents = new HashMap<String, String>();
+                for (String fullPath : paths) {
+                    String line = lines.get(fullPath);
+                    if (line != null && line.equals(mLines.get(fullPath)) && !verify && !dirty.contains(fullPath)) {
+                        continue;
+                    }
+                    String md5 = root.file.md5sum(fullPath);
+                    if (md5 == null) {
+                        continue;
+                    }
+                    if (md5.equals(mHashes.get(fullPath))) {
+                        mLines.put(fullPath, line);
+                        continue;
+                    }
+                    Data data = root.file.read(fullPath);
+                    if (data != null) {
+                        mLines.put(fullPath, line);
+                        mHashes.put(fullPath, md5);
+                        contents.put(fullPath, data.toString());
+                    }
+                }
+                return contents;
+            }
+        });
+        if (changed == null) {
+            return;
+        }
+
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            final String fullPath = entry.getKey();
+            final PreferenceFile file = PreferenceFile.fromXml(entry.getValue());
+            if (!file.isValidPreferenceFile()) {
+                // Probably caught while being written, wait for the next tick
+                mLines.remove(fullPath);
+                mHashes.remove(fullPath);
+                continue;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnFileChangedListener listener;
+                    synchronized (PreferenceWatcher.this) {
+                        listener = mListeners.get(fullPath);
+                    }
+                    if (listener != null) {
+                        listener.onFileChanged(fullPath, file, readTime);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The ls -l line of each file, by full path, with a single command
+     */
+    private static Map<String, String> list(RootFW root, List<String> paths) {
+        Map<String, String> lines = new HashMap<String, String>();
+        StringBuilder command = new StringBuilder("ls -l");
+        for (String fullPath : paths) {
+            command.append(' ').append(quote(fullPath));
+        }
+        ShellResult result = root.shell.execute(command.toString());
+        if (result == null || result.output() == null) {
+            return lines;
+        }
+        for (String line : result.output().raw()) {
+            for (String fullPath : paths) {
+                if (line.endsWith(" " + fullPath)) {
+                    lines.put(fullPath, line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Start, restart or stop the inotifywait stream for the directories of
+     * the files
+     *
+     * @return true if the stream reports the writes of every file
+     */
+    private boolean stream(Set<String> paths) {
+        Set<String> directories = new HashSet<String>();
+        for (String fullPath : paths) {
+            int index = fullPath.lastIndexOf('/');
+            if (index > 0) {
+                directories.add(fullPath.substring(0, index));
+            }
+        }
+        if (mStream != null && (mStream.mEnded || !mStream.mDirectories.equals(directories))) {
+            if (mStream.mFailed) {
+                // Missing binary or broken session, poll from now on
+                mStreamUnavailable = true;
+            }
+            mStream.cancel();
+            mStream = null;
+        }
+        if (mStream == null && !directories.isEmpty() && !mStreamUnavailable) {
+            mStream = new Stream(directories);
+            mStream.start();
+        }
+        return mStream != null && mStream.mWatching;
+    }
+
+    private void onStreamEvent(String fullPath) {
+        synchronized (this) {
+            if (fullPath != null && !mListeners.containsKey(fullPath)) {
+                return;
+            }
+            if (fullPath == null) {
+                mDirty.addAll(mListeners.keySet());
+            } else {
+                mDirty.add(fullPath);
+            }
+            if (mTask == null) {
+                return;
+            }
+        }
+        mExecutor.execute(mPoll);
+    }
+
+    private static String quote(String str) {
+        return "'" + str.replace("'", "'\"'\"'") + "'";
+    }
+
+    /**
+     * Run inotifywait in its own root session, the pool's sessions are
+     * never held by a command which does not end
+     */
+    private final class Stream extends Thread {
+        private static final String MISSING = "inotifywait: missing";
+        private static final String ESTABLISHED = "Watches established.";
+
+        private final Set<String> mDirectories;
+        private final String mEndMarker = "EOF:" + Long.toHexString(Double.doubleToLongBits(Math.random())) + ":EOF";
+        private volatile java.lang.Process mProcess;
+        private volatile boolean mWatching;
+        private volatile boolean mStopped;
+        private volatile boolean mFailed;
+        private volatile boolean mEnded;
+
+        private Stream(Set<String> directories) {
+            super("PreferenceWatcher-inotify");
+            mDirectories = directories;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            RootFW root = null;
+            try {
+                root = App.getRootPool().newSession();
+                // Same protocol as FileDiscovery, the command only ends when
+                // the process is destroyed
+                synchronized (root.lock()) {
+                    mProcess = root.process();
+                    if (mProcess == null || mStopped) {
+                        return;
+                    }
+                    OutputStream out = mProcess.getOutputStream();
+                    out.write((buildCommand() + "\necho " + mEndMarker + "\n").getBytes());
+                    out.flush();
+
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(mProcess.getInputStream()));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.equals(mEndMarker) && !mStopped) {
+                        if (line.equals(MISSING)) {
+                            Log.d(Utils.TAG, "inotifywait not found, polling the preference files");
+                            return;
+                        } else if (line.equals(ESTABLISHED)) {
+                            mWatching = true;
+                            // Writes made before were not reported
+                            onStreamEvent(null);
+                        } else if (mWatching) {
+                            onStreamEvent(line.replace("//", "/"));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (!mStopped) {
+                    Log.e(Utils.TAG, "Error while streaming the preference files changes", e);
+                }
+            } finally {
+                mWatching = false;
+                mFailed = !mStopped;
+                mEnded = true;
+                if (root != null) {
+                    cancel();
+                    root.close();
+                }
+                // Lets the polling thread fall back or restart
+                onStreamEvent(null);
+            }
+        }
+
+        private String buildCommand() {
+            StringBuilder directories = new StringBuilder();
+            for (String directory : mDirectories) {
+                directories.append(' ').append(quote(directory + "/"));
+            }
+            return "if type inotifywait >/dev/null 2>&1; then"
+                    + " inotifywait -m -e close_write -e moved_to --format '%w%f'" + directories + " 2>&1;"
+                    + " else echo '" + MISSING + "'; fi";
+        }
+
+        /**
+         * Destroy the process: closing the session would wait for its lock
+         */
+        private void cancel() {
+            mStopped = true;
+            java.lang.Process process = mProcess;
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+}
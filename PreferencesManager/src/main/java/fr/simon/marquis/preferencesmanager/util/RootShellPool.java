@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.util.Log;
+
+import com.spazedog.lib.rootfw.RootFW;
+import com.spazedog.lib.rootfw.container.Data;
+import com.spazedog.lib.rootfw.container.FileStat;
+import com.spazedog.lib.rootfw.container.ShellResult;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A small pool of long-lived root shells.
+ * <p/>
+ * Each {@link RootFW} runs its commands one after another, so independent
+ * reads and stats are spread over several sessions. A session is checked
+ * before being handed out, and replaced if its shell died.
+ * <p/>
+ * The threads marked with {@link #setBackground(boolean)} (index, prefetch,
+ * watcher, bulk backup) use all the sessions but one, and let the other
+ * threads go first: a command of the main thread never waits for all of
+ * them to finish.
+ */
+public class RootShellPool {
+
+    /**
+     * Work done with one session, which is not shared until it returns
+     */
+    public interface Command<T> {
+        public T run(RootFW root);
+    }
+
+    // Set by the threads doing background work
+    private static final ThreadLocal<Boolean> sBackground = new ThreadLocal<Boolean>();
+
+    private final int mMaxSessions;
+    private final int mMaxBackground;
+    // Sessions run su, or sh for the tests
+    private final boolean mRoot;
+    private final LinkedList<RootFW> mIdle = new LinkedList<RootFW>();
+    // Sessions idle, in use or being connected
+    private int mSessions;
+
+    private int mInFlight;
+    private int mBackgroundInFlight;
+    // Other threads waiting for a session, the background ones wait after them
+    private int mForegroundWaiting;
+    private long mCommands;
+    private long mWaitNanos;
+    private int mReconnects;
+
+    public RootShellPool(int maxSessions) {
+        this(maxSessions, true);
+    }
+
+    RootShellPool(int maxSessions, boolean root) {
+        super();
+        mMaxSessions = Math.max(1, maxSessions);
+        mMaxBackground = Math.max(1, mMaxSessions - 1);
+        mRoot = root;
+    }
+
+    /**
+     * Mark the current thread as doing background work, see the class
+     * documentation
+     */
+    public static void setBackground(boolean background) {
+        sBackground.set(background);
+    }
+
+    private static boolean isBackground() {
+        Boolean background = sBackground.get();
+        return background != null && background;
+    }
+
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    /**
+     * @return The number of sessions the background threads can use together
+     */
+    public int getMaxBackgroundSessions() {
+        return mMaxBackground;
+    }
+
+    /**
+     * Run the command with a session of the pool, waiting for one to be
+     * available if needed
+     *
+     * @return The result of the command, or null if the thread was interrupted
+     * while waiting
+     */
+    public <T> T execute(Command<T> command) {
+        RootFW root = acquire();
+        if (root == null) {
+            return null;
+        }
+        boolean completed = false;
+        try {
+            T result = command.run(root);
+            completed = true;
+            return result;
+        } finally {
+            release(root, completed);
+        }
+    }
+
+    public Data read(final String path) {
+        return execute(new Command<Data>() {
+            @Override
+            public Data run(RootFW root) {
+                return root.file.read(path);
+            }
+        });
+    }
+
+    public FileStat stat(final String path) {
+        return execute(new Command<FileStat>() {
+            @Override
+            public FileStat run(RootFW root) {
+                return root.file.stat(path);
+            }
+        });
+    }
+
+    public String md5sum(final String path) {
+        return execute(new Command<String>() {
+            @Override
+            public String run(RootFW root) {
+                return root.file.md5sum(path);
+            }
+        });
+    }
+
+    public ArrayList<FileStat> statList(final String path) {
+        return execute(new Command<ArrayList<FileStat>>() {
+            @Override
+            public ArrayList<FileStat> run(RootFW root) {
+                return root.file.statList(path);
+            }
+        });
+    }
+
+    /**
+     * Copy the bytes of a file with cat, an existing destination keeps its
+     * owner and mode
+     *
+     * @return true if the copy succeeded
+     */
+    public boolean copy(final String source, final String destination) {
+        ShellResult result = execute(new Command<ShellResult>() {
+            @Override
+            public ShellResult run(RootFW root) {
+                return root.shell.execute("cat " + quote(source) + " > " + quote(destination));
+            }
+        });
+        return result != null && result.code() != null && result.code() == 0;
+    }
+
+    /**
+     * Replace the destination by a copy of the source, in one shell command.
+     * The copy is written next to the destination, given the owner and mode,
+     * then renamed over it: the destination is either left untouched or fully
+     * replaced, even if the shell dies. The previous content is copied to
+     * lastGood before the rename, lastGood is deleted if the destination did
+     * not exist.
+     *
+     * @return true if the destination was replaced
+     */
+    public boolean replace(final String source, final String destination, final int user, final int group, final String permission, final String lastGood) {
+        ShellResult result = execute(new Command<ShellResult>() {
+            @Override
+            public ShellResult run(RootFW root) {
+                String tmp = quote(destination + ".tmp");
+                return root.shell.execute("cat " + quote(source) + " > " + tmp
+                        + " && chown " + user + ":" + group + " " + tmp
+                        + " && chmod " + permission + " " + tmp
+                        + " && if [ -e " + quote(destination) + " ]; then cat " + quote(destination) + " > " + quote(lastGood) + "; else rm -f " + quote(lastGood) + "; fi"
+                        + " && mv " + tmp + " " + quote(destination)
+                        + " || (rm -f " + tmp + "; false)");
+            }
+        });
+        return result != null && result.code() != null && result.code() == 0;
+    }
+
+    /**
+     * @return true if a root shell is available, reconnecting if needed
+     */
+    public boolean isConnected() {
+        Boolean connected = execute(new Command<Boolean>() {
+            @Override
+            public Boolean run(RootFW root) {
+                return root.connected();
+            }
+        });
+        return connected != null && connected;
+    }
+
+    private RootFW acquire() {
+        final long start = System.nanoTime();
+        final boolean background = isBackground();
+        RootFW root = null;
+        synchronized (this) {
+            if (!background) {
+                mForegroundWaiting++;
+            }
+            try {
+                while (!canAcquire(background)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                if (!background) {
+                    mForegroundWaiting--;
+                    // The background threads may go if there is another session
+                    notifyAll();
+                }
+            }
+            if (!mIdle.isEmpty()) {
+                // Most recently used first, it is the most likely to be alive
+                root = mIdle.removeLast();
+            } else {
+                mSessions++;
+            }
+            mInFlight++;
+            if (background) {
+                mBackgroundInFlight++;
+            }
+            mCommands++;
+            mWaitNanos += System.nanoTime() - start;
+        }
+
+        // Connecting a shell is slow, keep it outside of the lock
+        try {
+            if (root == null) {
+                root = newSession();
+            } else if (!root.connected()) {
+                Log.w(Utils.TAG, "Root shell disconnected, reconnecting");
+                root.close();
+                root = newSession();
+                synchronized (this) {
+                    mReconnects++;
+                }
+            }
+        } catch (RuntimeException e) {
+            // The session is not handed out, give its place back
+            Log.e(Utils.TAG, "Error while connecting a root shell", e);
+            synchronized (this) {
+                mSessions--;
+                mInFlight--;
+                if (background) {
+                    mBackgroundInFlight--;
+                }
+                notifyAll();
+            }
+            throw e;
+        }
+        return root;
+    }
+
+    private boolean canAcquire(boolean background) {
+        if (mIdle.isEmpty() && mSessions >= mMaxSessions) {
+            return false;
+        }
+        return !background || (mForegroundWaiting == 0 && mBackgroundInFlight < mMaxBackground);
+    }
+
+    /**
+     * Open a new session, overridden by the tests
+     */
+    RootFW newSession() {
+        return new RootFW(mRoot);
+    }
+
+    private void release(RootFW root, boolean completed) {
+        boolean healthy = completed && root.connected();
+        if (!healthy) {
+            root.close();
+        }
+        synchronized (this) {
+            mInFlight--;
+            if (isBackground()) {
+                mBackgroundInFlight--;
+            }
+            if (healthy) {
+                mIdle.addLast(root);
+            } else {
+                mSessions--;
+            }
+            // The waiting threads do not all wait for the same condition
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of commands running
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return The number of sessions replaced after their shell died
+     */
+    public synchronized int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * @return The average time spent waiting for a session, in milliseconds
+     */
+    public synchronized float getAverageWaitMillis() {
+        return mCommands == 0 ? 0 : mWaitNanos / 1000000f / mCommands;
+    }
+
+    private static String quote(String str) {
+        return "'" + str.replace("'", "'\"'\"'") + "'";
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RootShellPool{sessions=" + mSessions + "/" + mMaxSessions + ", inFlight=" + mInFlight + ", backgroundInFlight=" + mBackgroundInFlight + ", commands=" + mCommands + ", averageWaitMillis=" + getAverageWaitMillis() + ", reconnects=" + mReconnects + "}";
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+/**
+ * A bounded pool of the keys and short values read by {@link FastXmlParser}.
+ * <p/>
+ * The files of a package are parsed again for each tab, reload and search,
+ * and they repeat the same keys and values: the parser looks its scratch
+ * builder up here, so a string already seen is shared instead of being
+ * copied again. The pool is a hash table with two strings per bucket, a new
+ * string replaces the older one of its bucket, so it never holds more than
+ * {@link #CAPACITY} strings of at most {@link #MAX_LENGTH} chars.
+ */
+public class StringPool {
+
+    private static final int CAPACITY = 8192;
+    private static final int MAX_LENGTH = 64;
+
+    private static StringPool instance;
+
+    private final String[] mStrings = new String[CAPACITY];
+    private long mLookups;
+    private long mHits;
+
+    private StringPool() {
+        super();
+    }
+
+    public static synchronized StringPool getInstance() {
+        if (instance == null) {
+            instance = new StringPool();
+        }
+        return instance;
+    }
+
+    /**
+     * @return A string equal to the content of the builder, shared with the
+     * previous callers if it is in the pool
+     */
+    public String intern(StringBuilder sb) {
+        final int length = sb.length();
+        if (length > MAX_LENGTH) {
+            return sb.toString();
+        }
+        // Same hash as String#hashCode, which is cached by the pooled strings
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + sb.charAt(i);
+        }
+        final int bucket = ((hash ^ (hash >>> 16)) & (CAPACITY / 2 - 1)) * 2;
+
+        synchronized (this) {
+            mLookups++;
+            final String[] strings = mStrings;
+            String str = strings[bucket];
+            if (matches(str, hash, sb)) {
+                mHits++;
+                return str;
+            }
+            str = strings[bucket + 1];
+            if (matches(str, hash, sb)) {
+                mHits++;
+                return str;
+            }
+            // The older string of the bucket is dropped
+            str = sb.toString();
+            strings[bucket + 1] = strings[bucket];
+            strings[bucket] = str;
+            return str;
+        }
+    }
+
+    private static boolean matches(String str, int hash, StringBuilder sb) {
+        return str != null && str.hashCode() == hash && contentEquals(str, sb);
+    }
+
+    private static boolean contentEquals(String str, StringBuilder sb) {
+        final int length = sb.length();
+        if (str.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (str.charAt(i) != sb.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The share of the lookups that found their string in the pool
+     */
+    public synchronized float getHitRate() {
+        return mLookups == 0 ? 0 : (float) mHits / mLookups;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (String str : mStrings) {
+            if (str != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Drop the pooled strings, the metrics are kept
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mStrings[i] = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StringPool{size=" + size() + "/" + CAPACITY + ", lookups=" + mLookups + ", hits=" + mHits + ", hitRate=" + getHitRate() + "}";
+    }
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -27,21 +28,33 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.spazedog.lib.rootfw.container.Data;
+import com.spazedog.lib.rootfw.RootFW;
 import com.spazedog.lib.rootfw.container.FileStat;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import fr.simon.marquis.preferencesmanager.model.AppEntry;
 import fr.simon.marquis.preferencesmanager.model.Backup;
@@ -57,8 +70,13 @@ public class Utils {
     private static final String FAVORITES_KEY = "FAVORITES_KEY";
     private static final String TAG_ROOT_DIALOG = "RootDialog";
     private static final String PREF_SHOW_SYSTEM_APPS = "SHOW_SYSTEM_APPS";
-    private static final String BASE_PATH = "data/data/";
+    private static final String LAST_GOOD_DIRECTORY = "last_good";
+    // Mode of the preference files written by SharedPreferences
+    private static final String NEW_FILE_PERMISSION = "660";
+    static final String BASE_PATH = "data/data/";
     private static ArrayList<AppEntry> applications;
+    // Every application with an entry, displayed or not, by package name
+    private static HashMap<String, AppEntry> knownApplications;
     private static HashSet<String> favorites;
 
     public static ArrayList<AppEntry> getPreviousApps() {
@@ -69,30 +87,143 @@ public class Utils {
         RootDialog.newInstance().show(fm, TAG_ROOT_DIALOG);
     }
 
+    /**
+     * @return The applications of the last run, restored from the snapshot,
+     * or null if there is none
+     */
+    public static ArrayList<AppEntry> getCachedApplications(Context ctx) {
+        List<AppEntry> entries = AppListSnapshot.load(ctx);
+        if (entries == null) {
+            return null;
+        }
+        knownApplications = new HashMap<String, AppEntry>(entries.size());
+        for (AppEntry entry : entries) {
+            knownApplications.put(entry.getPackageName(), entry);
+        }
+        applications = filterApplications(entries, ctx);
+        return applications;
+    }
+
+    /**
+     * Reconcile the known applications with the installed ones: entries of
+     * new or updated applications are built, the others are reused
+     */
     public static ArrayList<AppEntry> getApplications(Context ctx) {
         PackageManager pm = ctx.getPackageManager();
         if (pm == null) {
             applications = new ArrayList<AppEntry>();
         } else {
             boolean showSystemApps = isShowSystemApps(ctx);
-            List<ApplicationInfo> appsInfo = pm.getInstalledApplications(PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS);
-            if (appsInfo == null) {
-                appsInfo = new ArrayList<ApplicationInfo>();
+            // Unlike ApplicationInfo, PackageInfo gives the time of the last update
+            List<PackageInfo> packages = pm.getInstalledPackages(PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS);
+            if (packages == null) {
+                packages = new ArrayList<PackageInfo>();
             }
 
-            List<AppEntry> entries = new ArrayList<AppEntry>(appsInfo.size());
-            for (ApplicationInfo a : appsInfo) {
-                if (showSystemApps || (a.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
-                    entries.add(new AppEntry(a, ctx));
+            HashMap<String, AppEntry> known = knownApplications == null ? new HashMap<String, AppEntry>() : knownApplications;
+            List<AppEntry> entries = new ArrayList<AppEntry>(packages.size());
+            List<PackageInfo> changed = new ArrayList<PackageInfo>();
+            for (PackageInfo p : packages) {
+                ApplicationInfo a = p.applicationInfo;
+                if (a == null) {
+                    continue;
+                }
+                AppEntry entry = known.get(a.packageName);
+                if (entry != null && entry.getLastUpdateTime() == p.lastUpdateTime) {
+                    entry.setApplicationInfo(a);
+                    entries.add(entry);
+                } else if (showSystemApps || (a.flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+                    changed.add(p);
                 }
             }
+            Log.d(TAG, "Applications: " + changed.size() + " new or updated, " + (known.size() - entries.size()) + " removed or outdated");
+            entries.addAll(Arrays.asList(createAppEntries(changed, ctx)));
 
-            Collections.sort(entries, new MyComparator());
-            applications = new ArrayList<AppEntry>(entries);
+            HashMap<String, AppEntry> map = new HashMap<String, AppEntry>(entries.size());
+            for (AppEntry entry : entries) {
+                map.put(entry.getPackageName(), entry);
+            }
+            knownApplications = map;
+            applications = filterApplications(entries, ctx);
+            AppListSnapshot.save(ctx, entries);
         }
         return applications;
     }
 
+    /**
+     * @return The applications to display, sorted
+     */
+    private static ArrayList<AppEntry> filterApplications(List<AppEntry> entries, Context ctx) {
+        boolean showSystemApps = isShowSystemApps(ctx);
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>(entries.size());
+        for (AppEntry entry : entries) {
+            if (showSystemApps || !entry.isSystem()) {
+                boolean favorite = isFavorite(entry.getPackageName(), ctx);
+                if (favorite != entry.isFavorite()) {
+                    entry.setFavorite(favorite);
+                }
+                result.add(entry);
+            }
+        }
+        Collections.sort(result, new MyComparator());
+        return result;
+    }
+
+    /**
+     * Load the labels of the applications on all the cores, icons are
+     * loaded later by {@link IconLoader}
+     */
+    private static AppEntry[] createAppEntries(final List<PackageInfo> packages, final Context ctx) {
+        final AppEntry[] entries = new AppEntry[packages.size()];
+        // Read by every thread
+        initFavorites(ctx);
+
+        final int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), entries.length));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < entries.length; i += threads) {
+                        entries[i] = createAppEntry(packages.get(i), ctx);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Error while loading the applications", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Entries left by a failed thread
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == null) {
+                entries[i] = createAppEntry(packages.get(i), ctx);
+            }
+        }
+        return entries;
+    }
+
+    private static AppEntry createAppEntry(PackageInfo p, Context ctx) {
+        return new AppEntry(p.applicationInfo, p.lastUpdateTime, p.versionCode, ctx);
+    }
+
     public static void setFavorite(String packageName, boolean favorite, Context ctx) {
         if (favorites == null) {
             initFavorites(ctx);
@@ -124,7 +255,7 @@ public class Utils {
 
     private static void updateApplicationInfo(String packageName, boolean favorite) {
         for (AppEntry a : applications) {
-            if (a.getApplicationInfo().packageName.equals(packageName)) {
+            if (a.getPackageName().equals(packageName)) {
                 a.setFavorite(favorite);
                 return;
             }
@@ -140,21 +271,30 @@ public class Utils {
 
     private static void initFavorites(Context ctx) {
         if (favorites == null) {
-            favorites = new HashSet<String>();
+            favorites = readFavorites(ctx);
+        }
+    }
 
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(ctx);
+    /**
+     * @return The saved favorites, read without the cache of the UI so it
+     * can be called from any thread
+     */
+    public static HashSet<String> readFavorites(Context ctx) {
+        HashSet<String> favorites = new HashSet<String>();
 
-            if (sp.contains(FAVORITES_KEY)) {
-                try {
-                    JSONArray array = new JSONArray(sp.getString(FAVORITES_KEY, "[]"));
-                    for (int i = 0; i < array.length(); i++) {
-                        favorites.add(array.optString(i));
-                    }
-                } catch (JSONException e) {
-                    Log.e(TAG, "error parsing JSON", e);
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(ctx);
+
+        if (sp.contains(FAVORITES_KEY)) {
+            try {
+                JSONArray array = new JSONArray(sp.getString(FAVORITES_KEY, "[]"));
+                for (int i = 0; i < array.length(); i++) {
+                    favorites.add(array.optString(i));
                 }
+            } catch (JSONException e) {
+                Log.e(TAG, "error parsing JSON", e);
             }
         }
+        return favorites;
     }
 
     public static boolean isShowSystemApps(Context ctx) {
@@ -168,7 +308,7 @@ public class Utils {
     }
 
     public static void debugFile(String file) {
-        FileStat fileStat = App.getRoot().file.stat(file);
+        FileStat fileStat = App.getRootPool().stat(file);
         Log.d(Utils.TAG, file + " [ `" + fileStat.access() + "` , `" + fileStat.link() + "` , `" + fileStat.mm() + "` , `" + fileStat.name() + "` , `" + fileStat.permission() + "` , `" + fileStat.type() + "` , `" + fileStat.group() + "` , `" + fileStat.size() + "` , `" + fileStat.user() + "` ]");
     }
 
@@ -177,12 +317,40 @@ public class Utils {
     }
 
     public static Files findXmlFiles(String packageName) {
-        String path = BASE_PATH + packageName;
-        ArrayList<FileStat> files = App.getRoot().file.statList(path);
-        return findFiles(files, path, new Files());
+        return findXmlFiles(packageName, null);
     }
 
-    private static Files findFiles(ArrayList<FileStat> files, String path, Files list) {
+    /**
+     * @param listener Notified of each file as soon as it is found, may be null
+     */
+    public static Files findXmlFiles(String packageName, final FileDiscovery.OnFileFoundListener listener) {
+        final String path = BASE_PATH + packageName;
+        Files files = App.getRootPool().execute(new RootShellPool.Command<Files>() {
+            @Override
+            public Files run(RootFW root) {
+                try {
+                    return FileDiscovery.find(root, path, listener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can not search " + path + ", listing each directory", e);
+                    // Part of the output may be left in the shell, the
+                    // session is dropped by the pool instead of being reused
+                    root.close();
+                    return null;
+                }
+            }
+        });
+        if (files == null && !Thread.currentThread().isInterrupted()) {
+            files = App.getRootPool().execute(new RootShellPool.Command<Files>() {
+                @Override
+                public Files run(RootFW root) {
+                    return findFiles(root, root.file.statList(path), path, new Files());
+                }
+            });
+        }
+        return files == null ? new Files() : files;
+    }
+
+    private static Files findFiles(RootFW root, ArrayList<FileStat> files, String path, Files list) {
         if (files == null)
             return list;
 
@@ -193,7 +361,7 @@ public class Utils {
                 continue;
             if ("d".equals(file.type())) {
                 String p = path + "/" + file.name();
-                findFiles(App.getRoot().file.statList(p), p, list);
+                findFiles(root, root.file.statList(p), p, list);
                 continue;
             }
             if ("f".equals(file.type()) && file.name().endsWith(".xml")) {
@@ -205,99 +373,272 @@ public class Utils {
     }
 
     public static BackupContainer getBackups(Context ctx, String packageName) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(ctx);
-        BackupContainer container = null;
+        return BackupIndex.getInstance(ctx).getBackups(packageName);
+    }
+
+    /**
+     * Back up the exact bytes of the file, copied by root to a temporary file
+     * and streamed to the store
+     */
+    public static boolean backupFile(Backup backup, String fullPath, Context ctx) {
+        java.io.File tmp = null;
+        InputStream in = null;
         try {
-            container = BackupContainer.fromJSON(new JSONArray(sp.getString(packageName, "[]")));
-        } catch (JSONException ignore) {
+            tmp = java.io.File.createTempFile("backup", null, ctx.getCacheDir());
+            if (!App.getRootPool().copy(fullPath, tmp.getAbsolutePath())) {
+                return false;
+            }
+            in = new FileInputStream(tmp);
+            return BackupStore.getInstance(ctx).write(backup, in);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not backup file: " + e.toString());
+            return false;
+        } finally {
+            close(in);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
-        if (container == null) {
-            container = new BackupContainer();
+    }
+
+    /**
+     * Write the backup back to the file: it is inflated to a temporary file,
+     * which is copied by root over the file
+     *
+     * @return The restored content, or null if the backup can not be restored
+     */
+    public static String restoreBackup(Backup backup, String fullPath, Context ctx) {
+        java.io.File tmp = null;
+        InputStream in = null;
+        try {
+            in = BackupStore.getInstance(ctx).open(backup);
+            tmp = stage(in, ctx);
+            if (!replaceFile(tmp, fullPath, ctx)) {
+                return null;
+            }
+            return readFile(tmp);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not restore file: " + e.toString());
+            return null;
+        } finally {
+            close(in);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
-        return container;
     }
 
-    public static void saveBackups(Context ctx, String packageName, BackupContainer container) {
-        Editor ed = PreferenceManager.getDefaultSharedPreferences(ctx).edit();
-        String str = container.toJSON().toString();
-        ed.putString(packageName, str);
+    /**
+     * @return The content of the backup, or null if it can not be read
+     */
+    public static String readBackup(Backup backup, Context ctx) {
+        InputStream in = null;
+        try {
+            in = BackupStore.getInstance(ctx).open(backup);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            Log.e(TAG, "Can not read backup: " + e.toString());
+            return null;
+        } finally {
+            close(in);
+        }
+    }
 
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
-            ed.apply();
-        } else {
-            ed.commit();
+    /**
+     * Write the content to the file, if it is a valid preference file. The
+     * content is not closed.
+     */
+    public static boolean restoreFile(InputStream content, String fullPath, Context ctx) {
+        java.io.File tmp = null;
+        InputStream in = null;
+        try {
+            tmp = stage(content, ctx);
+            in = new FileInputStream(tmp);
+            XmlUtils.readMapXml(in);
+            return replaceFile(tmp, fullPath, ctx);
+        } catch (XmlPullParserException e) {
+            Log.e(TAG, "Invalid preference file " + fullPath + ": " + e.toString());
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Can not restore file: " + e.toString());
+            return false;
+        } finally {
+            close(in);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
     }
 
-    public static boolean backupFile(Backup backup, Data data, Context ctx) {
-        String filename = String.valueOf(backup.getTime());
-        FileOutputStream outputStream;
+    /**
+     * Stop the application, so it reads its files again when restarted
+     */
+    public static void killPackage(final String packageName) {
+        App.getRootPool().execute(new RootShellPool.Command<Void>() {
+            @Override
+            public Void run(RootFW root) {
+                root.processes.kill(packageName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Write the text to the file: it is encoded once to a temporary file,
+     * which is copied by root over the file, keeping its owner and mode.
+     * Unlike a quoted shell argument, the size of the text is not limited.
+     */
+    public static boolean writeFile(String content, String fullPath, Context ctx) {
+        java.io.File tmp = null;
+        Writer out = null;
         try {
-            outputStream = ctx.openFileOutput(filename, Context.MODE_PRIVATE);
-            outputStream.write(data.toString().getBytes());
-            outputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            tmp = java.io.File.createTempFile("write", null, ctx.getCacheDir());
+            out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            out.write(content);
+            out.close();
+            out = null;
+            return replaceFile(tmp, fullPath, ctx);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not write file: " + e.toString());
             return false;
+        } finally {
+            close(out);
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
-        return true;
     }
 
+    /**
+     * Put the staged file in place of the file, atomically when the owner
+     * and mode of the file are known. The previous content is kept for
+     * {@link #rollbackFile(String, Context)}. A file which does not exist yet
+     * is given the owner of its directory, like the files its application
+     * writes.
+     */
+    private static boolean replaceFile(java.io.File staged, String fullPath, Context ctx) {
+        long start = System.nanoTime();
+        RootShellPool pool = App.getRootPool();
+        FileStat stat = pool.stat(fullPath);
+        String permission;
+        if (stat == null) {
+            stat = pool.stat(new java.io.File(fullPath).getParent());
+            permission = NEW_FILE_PERMISSION;
+        } else {
+            permission = stat.permission();
+        }
+        boolean replaced;
+        if (stat != null && stat.user() != null && stat.group() != null && permission != null && permission.matches("[0-7]{3,4}")) {
+            replaced = pool.replace(staged.getAbsolutePath(), fullPath, stat.user(), stat.group(), permission, getLastGood(fullPath, ctx).getAbsolutePath());
+        } else {
+            // The copy could not be given the right owner, write in place
+            replaced = pool.copy(staged.getAbsolutePath(), fullPath);
+        }
+        Log.d(TAG, "Replaced " + fullPath + " (" + staged.length() + " bytes) --> " + (System.nanoTime() - start) / 1000000 + " ms");
+        return replaced;
+    }
 
-    public static String getBackupContent(Backup backup, Context ctx) {
-        String eol = System.getProperty("line.separator");
-        BufferedReader input = null;
-        StringBuilder buffer = new StringBuilder();
+    /**
+     * @return true if the file has a previous content to go back to
+     */
+    public static boolean canRollbackFile(String fullPath, Context ctx) {
+        return getLastGood(fullPath, ctx).exists();
+    }
+
+    /**
+     * Put back the content the file had before it was last written; calling
+     * it again goes back to the newer content
+     */
+    public static boolean rollbackFile(String fullPath, Context ctx) {
+        java.io.File lastGood = getLastGood(fullPath, ctx);
+        return lastGood.exists() && replaceFile(lastGood, fullPath, ctx);
+    }
+
+    private static java.io.File getLastGood(String fullPath, Context ctx) {
+        java.io.File directory = new java.io.File(ctx.getFilesDir(), LAST_GOOD_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Can not create " + directory);
+        }
+        return new java.io.File(directory, fullPath.replace('/', '_'));
+    }
+
+    /**
+     * @return A temporary file of the cache directory with the content
+     */
+    private static java.io.File stage(InputStream content, Context ctx) throws IOException {
+        java.io.File tmp = java.io.File.createTempFile("restore", null, ctx.getCacheDir());
+        OutputStream out = null;
         try {
-            input = new BufferedReader(new InputStreamReader(ctx.openFileInput(String.valueOf(backup.getTime()))));
-            String line;
-            while ((line = input.readLine()) != null) {
-                buffer.append(line).append(eol);
+            out = new FileOutputStream(tmp);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = content.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
             }
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "File not found: " + e.toString());
-            return null;
-        } catch (IOException e) {
-            Log.e(TAG, "Can not read file: " + e.toString());
-            return null;
+            out.close();
+            out = null;
+            return tmp;
         } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            close(out);
+            if (out != null) {
+                tmp.delete();
             }
         }
-        return buffer.toString();
     }
 
-    public static Drawable findDrawable(String packageName, Context ctx) {
-        if (TextUtils.isEmpty(packageName)) {
-            return null;
+    private static String readFile(java.io.File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
         }
+        return new String(bytes, "UTF-8");
+    }
 
-        if (applications != null) {
-            for (AppEntry app : applications) {
-                if (packageName.equals(app.getApplicationInfo().packageName)) {
-                    return app.getIcon(ctx);
-                }
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
             }
-        } else {
+        }
+    }
+
+    /**
+     * Give the icon of the application to the listener, on the main thread
+     * once it is decoded. The listener is not called if the application is
+     * not found.
+     */
+    public static void loadDrawable(String packageName, Context ctx, IconLoader.OnIconLoadedListener listener) {
+        if (TextUtils.isEmpty(packageName)) {
+            return;
+        }
+
+        AppEntry app = knownApplications == null ? null : knownApplications.get(packageName);
+        if (app == null) {
             try {
                 PackageManager pm = ctx.getPackageManager();
                 if (pm == null) {
-                    return null;
+                    return;
                 }
-                ApplicationInfo applicationInfo = pm.getApplicationInfo(packageName, 0);
-                if (applicationInfo != null) {
-                    AppEntry appEntry = new AppEntry(applicationInfo, ctx);
-                    return appEntry.getIcon(ctx);
+                PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+                if (packageInfo == null || packageInfo.applicationInfo == null) {
+                    return;
                 }
+                app = createAppEntry(packageInfo, ctx);
             } catch (PackageManager.NameNotFoundException ignored) {
+                return;
             }
         }
-        return null;
+        IconLoader.getInstance(ctx).loadIcon(app, listener);
     }
 
 }
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import fr.simon.marquis.preferencesmanager.model.XmlColorTheme;
+import fr.simon.marquis.preferencesmanager.model.XmlColorTheme.ColorTagEnum;
+
+/**
+ * Syntax highlighting of the xml text of an EditText.
+ * <p/>
+ * Only the visible part of the text, plus a screen above and below, is
+ * highlighted. Lexer checkpoints are kept across edits: an edit only
+ * invalidates the checkpoints around it, and lexing resumes from the last
+ * valid one. Edits and scrolls are coalesced, the text is lexed on a
+ * background thread, and the spans are recycled.
+ */
+public class XmlHighlighter implements TextWatcher, ViewTreeObserver.OnScrollChangedListener {
+
+    private static final long DELAY = 50;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "XmlHighlighter");
+        }
+    });
+
+    private final EditText mEditText;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Rect mRect = new Rect();
+    private final Runnable mPass = new Runnable() {
+        @Override
+        public void run() {
+            highlight();
+        }
+    };
+
+    private XmlColorTheme mTheme;
+    private Editable mText;
+    // Incremented by every edit, results of older passes are dropped
+    private volatile int mGeneration;
+
+    // Checkpoints of the lexer, sorted. Tentative ones follow an edit and
+    // are checked by the next pass going through them
+    private int[] mOffsets = new int[16];
+    private int[] mStates = new int[16];
+    private boolean[] mValid = new boolean[16];
+    private int mCount;
+    // Edited region, all the tentative checkpoints are after its end
+    private int mDamageStart = -1;
+    private int mDamageEnd = -1;
+
+    // Highlighted region, for the current generation
+    private int mHighlightStart;
+    private int mHighlightEnd = -1;
+    private int mHighlightGeneration = -1;
+
+    // Spans set on the text, and spans to reuse, by token type
+    private final List<ForegroundColorSpan> mSpans = new ArrayList<ForegroundColorSpan>();
+    private final List<Integer> mSpanTypes = new ArrayList<Integer>();
+    @SuppressWarnings("unchecked")
+    private final List<ForegroundColorSpan>[] mFreeSpans = new List[XmlTokenizer.TYPE_COUNT];
+
+    public XmlHighlighter(EditText editText) {
+        super();
+        mEditText = editText;
+        for (int i = 0; i < mFreeSpans.length; i++) {
+            mFreeSpans[i] = new ArrayList<ForegroundColorSpan>();
+        }
+    }
+
+    public void setTheme(XmlColorTheme theme) {
+        if (mTheme != theme) {
+            mTheme = theme;
+            // The colors of the spans change
+            clearSpans();
+            for (List<ForegroundColorSpan> free : mFreeSpans) {
+                free.clear();
+            }
+            mHighlightGeneration = -1;
+            schedule();
+        }
+    }
+
+    /**
+     * Listen to the edits and the scrolls of the EditText
+     */
+    public void start() {
+        mEditText.addTextChangedListener(this);
+        mEditText.getViewTreeObserver().addOnScrollChangedListener(this);
+        mHighlightGeneration = -1;
+        schedule();
+    }
+
+    public void stop() {
+        mEditText.removeTextChangedListener(this);
+        mEditText.getViewTreeObserver().removeOnScrollChangedListener(this);
+        mHandler.removeCallbacks(mPass);
+        mGeneration++;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        mGeneration++;
+        damage(start, before, count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        schedule();
+    }
+
+    @Override
+    public void onScrollChanged() {
+        schedule();
+    }
+
+    private void schedule() {
+        mHandler.removeCallbacks(mPass);
+        mHandler.postDelayed(mPass, DELAY);
+    }
+
+    /**
+     * Drop the checkpoints of the edited region, the following ones are kept
+     * as tentative
+     */
+    private void damage(int start, int before, int count) {
+        int oldEnd = start + before;
+        int delta = count - before;
+        int damageStart = start;
+        int damageEnd = start + count;
+        if (mDamageStart >= 0) {
+            damageStart = Math.min(mDamageStart, start);
+            damageEnd = mDamageEnd >= oldEnd ? mDamageEnd + delta : start + count;
+        }
+
+        int j = 0;
+        for (int i = 0; i < mCount; i++) {
+            int offset = mOffsets[i];
+            if (offset <= damageStart) {
+                keep(j++, offset, mStates[i], mValid[i]);
+            } else if (offset >= oldEnd && offset + delta >= damageEnd) {
+                keep(j++, offset + delta, mStates[i], false);
+            }
+        }
+        mCount = j;
+        mDamageStart = damageStart;
+        mDamageEnd = damageEnd;
+    }
+
+    private void keep(int i, int offset, int state, boolean valid) {
+        mOffsets[i] = offset;
+        mStates[i] = state;
+        mValid[i] = valid;
+    }
+
+    private void reset(Editable text) {
+        mText = text;
+        mCount = 0;
+        mDamageStart = -1;
+        mDamageEnd = -1;
+        mSpans.clear();
+        mSpanTypes.clear();
+        // Spans restored with the text are not ours
+        ForegroundColorSpan[] spans = text.getSpans(0, text.length(), ForegroundColorSpan.class);
+        for (ForegroundColorSpan span : spans) {
+            text.removeSpan(span);
+        }
+    }
+
+    private void highlight() {
+        Editable text = mEditText.getText();
+        Layout layout = mEditText.getLayout();
+        if (text == null || mTheme == null) {
+            return;
+        }
+        if (layout == null || !mEditText.getLocalVisibleRect(mRect)) {
+            if (layout == null) {
+                schedule();
+            }
+            return;
+        }
+        if (text != mText) {
+            reset(text);
+            mHighlightGeneration = -1;
+        }
+
+        int visibleStart = layout.getLineStart(layout.getLineForVertical(mRect.top));
+        int visibleEnd = layout.getLineEnd(layout.getLineForVertical(mRect.bottom));
+        if (mHighlightGeneration == mGeneration && visibleStart >= mHighlightStart && visibleEnd <= mHighlightEnd) {
+            return;
+        }
+        int height = mRect.height();
+        final int from = layout.getLineStart(layout.getLineForVertical(Math.max(0, mRect.top - height)));
+        final int to = layout.getLineEnd(layout.getLineForVertical(mRect.bottom + height));
+
+        // Resume from the last valid checkpoint before the region
+        int first = -1;
+        for (int i = 0; i < mCount && mOffsets[i] <= from; i++) {
+            if (mValid[i]) {
+                first = i;
+            }
+        }
+        final int base = first < 0 ? 0 : mOffsets[first];
+        final int state = first < 0 ? XmlTokenizer.STATE_TEXT : mStates[first];
+        final char[] chars = new char[to - base];
+        TextUtils.getChars(text, base, to, chars, 0);
+        final boolean atEnd = to == text.length();
+
+        int tentativeCount = 0;
+        for (int i = first + 1; i < mCount && mOffsets[i] < to; i++) {
+            if (!mValid[i]) {
+                tentativeCount++;
+            }
+        }
+        final int[] tentativeOffsets = new int[tentativeCount];
+        final int[] tentativeStates = new int[tentativeCount];
+        for (int i = first + 1, j = 0; j < tentativeCount; i++) {
+            if (!mValid[i]) {
+                tentativeOffsets[j] = mOffsets[i];
+                tentativeStates[j++] = mStates[i];
+            }
+        }
+
+        final int generation = mGeneration;
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    return;
+                }
+                final XmlTokenizer.Result result = XmlTokenizer.tokenize(chars, base, state, from, atEnd, tentativeOffsets, tentativeStates, tentativeOffsets.length);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration && mText == mEditText.getText()) {
+                            apply(result, base, from, to, generation);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(XmlTokenizer.Result result, int base, int from, int to, int generation) {
+        mergeCheckpoints(result, base);
+
+        clearSpans();
+        for (int i = 0; i < result.getTokenCount(); i++) {
+            int type = result.getTokenType(i);
+            ForegroundColorSpan span = obtainSpan(type);
+            mText.setSpan(span, Math.max(from, result.getTokenStart(i)), result.getTokenEnd(i), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            mSpans.add(span);
+            mSpanTypes.add(type);
+        }
+
+        mHighlightStart = from;
+        mHighlightEnd = Math.min(to, result.end);
+        mHighlightGeneration = generation;
+    }
+
+    private void mergeCheckpoints(XmlTokenizer.Result result, int base) {
+        int end = result.end;
+        int total = mCount + result.checkpointCount;
+        int[] offsets = new int[Math.max(total, 16)];
+        int[] states = new int[offsets.length];
+        boolean[] valid = new boolean[offsets.length];
+        int j = 0;
+        int i = 0;
+        for (; i < mCount && mOffsets[i] <= base; i++, j++) {
+            offsets[j] = mOffsets[i];
+            states[j] = mStates[i];
+            valid[j] = mValid[i];
+        }
+        for (int k = 0; k < result.checkpointCount; k++, j++) {
+            offsets[j] = result.checkpointOffsets[k];
+            states[j] = result.checkpointStates[k];
+            valid[j] = true;
+        }
+        for (; i < mCount; i++) {
+            if (mOffsets[i] > end) {
+                offsets[j] = mOffsets[i];
+                states[j] = mStates[i];
+                valid[j++] = mValid[i] || result.converged;
+            }
+        }
+        mOffsets = offsets;
+        mStates = states;
+        mValid = valid;
+        mCount = j;
+
+        if (result.converged) {
+            mDamageStart = -1;
+            mDamageEnd = -1;
+        } else if (mDamageStart >= 0 && end > mDamageStart) {
+            mDamageStart = end;
+            mDamageEnd = Math.max(mDamageEnd, end);
+        }
+    }
+
+    private ForegroundColorSpan obtainSpan(int type) {
+        List<ForegroundColorSpan> free = mFreeSpans[type];
+        if (!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        return new ForegroundColorSpan(mTheme.getColor(getColorTag(type)));
+    }
+
+    private void clearSpans() {
+        if (mText != null) {
+            for (int i = 0; i < mSpans.size(); i++) {
+                mText.removeSpan(mSpans.get(i));
+                mFreeSpans[mSpanTypes.get(i)].add(mSpans.get(i));
+            }
+        }
+        mSpans.clear();
+        mSpanTypes.clear();
+    }
+
+    private static ColorTagEnum getColorTag(int type) {
+        switch (type) {
+            case XmlTokenizer.TYPE_ATTR_NAME:
+                return ColorTagEnum.ATTR_NAME;
+            case XmlTokenizer.TYPE_ATTR_VALUE:
+                return ColorTagEnum.ATTR_VALUE;
+            case XmlTokenizer.TYPE_COMMENT:
+                return ColorTagEnum.COMMENT;
+            default:
+                return ColorTagEnum.TAG;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Position of every value of a {@code <map>} document, as recorded by
+ * {@link FastXmlParser#readMapXml(String, XmlMapLayout)}.
+ * <p/>
+ * It allows to save a few modified keys without serializing the whole map
+ * again: the untouched elements are copied from the original document, and
+ * only the modified ones are written with {@link FastXmlSerializer}, exactly
+ * like {@link XmlUtils#writeMapXml(Map, java.io.OutputStream)} would do.
+ * The spliced document keeps the order of the original one, so it is not
+ * byte for byte the output of writeMapXml, but it reads back as the same map.
+ */
+public class XmlMapLayout {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String mSource;
+    private boolean mValid;
+    // Position right after the <map> start tag
+    private int mMapStart;
+    // Position of the </map> end tag
+    private int mMapEnd;
+
+    // Elements, in document order
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+    private int[] mEnds = new int[INITIAL_CAPACITY];
+    private int mCount;
+
+    void reset(String source) {
+        mSource = source;
+        mValid = true;
+        mMapStart = -1;
+        mMapEnd = -1;
+        Arrays.fill(mKeys, 0, mCount, null);
+        mCount = 0;
+    }
+
+    void onMapStart(int position) {
+        mMapStart = position;
+    }
+
+    void onMapEnd(int position) {
+        mMapEnd = position;
+    }
+
+    void onElement(String key, int start, int end) {
+        if (mCount == mKeys.length) {
+            int capacity = mCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mEnds = Arrays.copyOf(mEnds, capacity);
+        }
+        mKeys[mCount] = key;
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        mCount++;
+    }
+
+    /**
+     * Mark the layout as unusable, e.g. when a key is defined twice
+     */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * @return true if the layout describes a whole, non-empty {@code <map>}
+     */
+    public boolean isValid() {
+        return mValid && mSource != null && mMapStart >= 0 && mMapEnd >= mMapStart;
+    }
+
+    /**
+     * @return the number of elements recorded so far
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Generate the document with the changes applied, and update this layout
+     * so that it describes the new document.
+     *
+     * @param values  The map, containing the values of all the changed keys.
+     * @param changed The keys added or updated since the document was read.
+     * @param removed The keys removed since the document was read.
+     * @return The new document, or null if the layout is not valid.
+     */
+    public String splice(Map<String, ?> values, Set<String> changed, Set<String> removed) throws XmlPullParserException, IOException {
+        if (!isValid()) {
+            return null;
+        }
+
+        final String source = mSource;
+        final StringBuilder out = new StringBuilder(source.length() + 128 * changed.size());
+        final StringWriter element = new StringWriter();
+        final FastXmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(element);
+        final Set<String> found = new HashSet<String>();
+
+        final int capacity = Math.max(INITIAL_CAPACITY, mCount + changed.size());
+        final String[] keys = new String[capacity];
+        final int[] starts = new int[capacity];
+        final int[] ends = new int[capacity];
+        int count = 0;
+
+        // Start of the original text that has not been copied yet
+        int copyFrom = 0;
+        for (int i = 0; i < mCount; i++) {
+            final String key = mKeys[i];
+            final int start = mStarts[i];
+            final int end = mEnds[i];
+            if (changed.contains(key)) {
+                found.add(key);
+                out.append(source, copyFrom, start);
+                starts[count] = out.length();
+                appendElement(out, element, serializer, key, values.get(key));
+                ends[count] = out.length();
+                copyFrom = end;
+            } else if (removed.contains(key)) {
+                // Drop the element along with the whitespace before it
+                out.append(source, copyFrom, i == 0 ? mMapStart : mEnds[i - 1]);
+                copyFrom = end;
+                continue;
+            } else {
+                // Copied later, with the following unchanged elements
+                starts[count] = out.length() + start - copyFrom;
+                ends[count] = starts[count] + end - start;
+            }
+            keys[count++] = key;
+        }
+
+        final int lastEnd = mCount == 0 ? mMapStart : mEnds[mCount - 1];
+        out.append(source, copyFrom, lastEnd);
+
+        // New keys go at the end of the map, with the same indentation
+        final String separator = mCount == 0 ? "\n" : source.substring(mCount == 1 ? mMapStart : mEnds[0], mStarts[mCount == 1 ? 0 : 1]);
+        for (String key : changed) {
+            if (found.contains(key)) {
+                continue;
+            }
+            out.append(separator);
+            starts[count] = out.length();
+            appendElement(out, element, serializer, key, values.get(key));
+            ends[count] = out.length();
+            keys[count++] = key;
+        }
+
+        if (count == 0) {
+            // An empty map is written as <map />
+            return null;
+        }
+
+        final int mapEnd = out.length() + mMapEnd - lastEnd;
+        out.append(source, lastEnd, source.length());
+
+        mSource = out.toString();
+        mMapEnd = mapEnd;
+        mKeys = keys;
+        mStarts = starts;
+        mEnds = ends;
+        mCount = count;
+        return mSource;
+    }
+
+    private static void appendElement(StringBuilder out, StringWriter element, FastXmlSerializer serializer, String key, Object value) throws XmlPullParserException, IOException {
+        final StringBuffer buffer = element.getBuffer();
+        buffer.setLength(0);
+        XmlUtils.writeValueXml(value, key, serializer);
+        serializer.flush();
+        int length = buffer.length();
+        // The serializer ends each element with a new line, which is part of
+        // the separator here
+        if (length > 0 && buffer.charAt(length - 1) == '\n') {
+            length--;
+        }
+        out.append(buffer, 0, length);
+    }
+}
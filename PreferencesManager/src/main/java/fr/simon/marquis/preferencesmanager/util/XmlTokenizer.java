@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 Simon Marquis (http://www.simon-marquis.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fr.simon.marquis.preferencesmanager.util;
+
+/**
+ * Resumable lexer of xml text, for syntax highlighting.
+ * <p/>
+ * The lexer state between two tokens fits in an int, so lexing can resume
+ * from any checkpoint recorded by a previous run. Old checkpoints following
+ * an edit are compared along the way: once the state matches one of them,
+ * the rest of the text lexes as before.
+ */
+public final class XmlTokenizer {
+
+    public static final int TYPE_TAG = 0;
+    public static final int TYPE_ATTR_NAME = 1;
+    public static final int TYPE_ATTR_VALUE = 2;
+    public static final int TYPE_COMMENT = 3;
+    public static final int TYPE_COUNT = 4;
+
+    public static final int STATE_TEXT = 0;
+    static final int STATE_TAG = 1;
+    static final int STATE_COMMENT = 2;
+    static final int STATE_CDATA = 3;
+
+    // Minimum distance between two checkpoints, in chars
+    static final int CHECKPOINT_INTERVAL = 1024;
+    // Longest construct to recognize after a '<'
+    private static final int LOOKAHEAD = 9;
+
+    private static final String COMMENT_START = "<!--";
+    private static final String COMMENT_END = "-->";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+
+    /**
+     * Tokens and checkpoints of a run, with absolute offsets
+     */
+    public static final class Result {
+        int[] tokens = new int[48];
+        int tokenCount;
+        int[] checkpointOffsets = new int[8];
+        int[] checkpointStates = new int[8];
+        int checkpointCount;
+        // Where lexing stopped, checkpoints are all before
+        int end;
+        // Whether the state matched an old checkpoint
+        boolean converged;
+
+        private void addToken(int start, int end, int type) {
+            if (tokenCount * 3 + 3 > tokens.length) {
+                int[] tmp = new int[tokens.length * 2];
+                System.arraycopy(tokens, 0, tmp, 0, tokenCount * 3);
+                tokens = tmp;
+            }
+            tokens[tokenCount * 3] = start;
+            tokens[tokenCount * 3 + 1] = end;
+            tokens[tokenCount * 3 + 2] = type;
+            tokenCount++;
+        }
+
+        private void addCheckpoint(int offset, int state) {
+            if (checkpointCount == checkpointOffsets.length) {
+                int[] offsets = new int[checkpointCount * 2];
+                int[] states = new int[checkpointCount * 2];
+                System.arraycopy(checkpointOffsets, 0, offsets, 0, checkpointCount);
+                System.arraycopy(checkpointStates, 0, states, 0, checkpointCount);
+                checkpointOffsets = offsets;
+                checkpointStates = states;
+            }
+            checkpointOffsets[checkpointCount] = offset;
+            checkpointStates[checkpointCount] = state;
+            checkpointCount++;
+        }
+
+        public int getTokenCount() {
+            return tokenCount;
+        }
+
+        public int getTokenStart(int i) {
+            return tokens[i * 3];
+        }
+
+        public int getTokenEnd(int i) {
+            return tokens[i * 3 + 1];
+        }
+
+        public int getTokenType(int i) {
+            return tokens[i * 3 + 2];
+        }
+    }
+
+    private final char[] mText;
+    private final int mBase;
+    private final int mLength;
+    private final boolean mAtEnd;
+    private final Result mResult = new Result();
+
+    private XmlTokenizer(char[] text, int base, boolean atEnd) {
+        super();
+        mText = text;
+        mBase = base;
+        mLength = text.length;
+        mAtEnd = atEnd;
+    }
+
+    /**
+     * @param text        The text to lex, starting at a checkpoint.
+     * @param base        Offset of the text in the document.
+     * @param state       State of the checkpoint.
+     * @param from        Tokens ending before this offset are not reported.
+     * @param atEnd       Whether the text goes up to the end of the document.
+     * @param oldOffsets  Old checkpoints to compare, sorted.
+     * @param oldStates   States of the old checkpoints.
+     * @param oldCount    Number of old checkpoints.
+     */
+    public static Result tokenize(char[] text, int base, int state, int from, boolean atEnd, int[] oldOffsets, int[] oldStates, int oldCount) {
+        XmlTokenizer tokenizer = new XmlTokenizer(text, base, atEnd);
+        tokenizer.run(state, from - base, oldOffsets, oldStates, oldCount);
+        return tokenizer.mResult;
+    }
+
+    private void run(int state, int from, int[] oldOffsets, int[] oldStates, int oldCount) {
+        Result result = mResult;
+        int pos = 0;
+        int lastCheckpoint = 0;
+        int old = 0;
+        while (pos < mLength) {
+            // pos is between two tokens here
+            while (old < oldCount && oldOffsets[old] - mBase < pos) {
+                old++;
+            }
+            if (!result.converged && old < oldCount && oldOffsets[old] - mBase == pos && oldStates[old] == state) {
+                result.converged = true;
+            }
+            if (pos - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                result.addCheckpoint(mBase + pos, state);
+                lastCheckpoint = pos;
+            }
+
+            int next;
+            switch (state) {
+                case STATE_TEXT:
+                    if (mText[pos] != '<') {
+                        next = indexOf('<', pos);
+                        if (next < 0) {
+                            next = mLength;
+                        }
+                        break;
+                    }
+                    if (!mAtEnd && mLength - pos < LOOKAHEAD) {
+                        result.end = mBase + pos;
+                        return;
+                    }
+                    if (startsWith(COMMENT_START, pos)) {
+                        state = STATE_COMMENT;
+                        next = pos;
+                    } else if (startsWith(CDATA_START, pos)) {
+                        state = STATE_CDATA;
+                        next = pos + CDATA_START.length();
+                    } else {
+                        next = pos + 1;
+                        if (next < mLength && mText[next] == '/') {
+                            next++;
+                        }
+                        int nameEnd = skipName(next);
+                        if (nameEnd > next) {
+                            addToken(pos, nameEnd, TYPE_TAG, from);
+                            state = STATE_TAG;
+                            next = nameEnd;
+                        }
+                    }
+                    break;
+                case STATE_TAG:
+                    char c = mText[pos];
+                    if (c == '>') {
+                        next = pos + 1;
+                        addToken(pos, next, TYPE_TAG, from);
+                        state = STATE_TEXT;
+                    } else if ((c == '/' || c == '?') && pos + 1 < mLength && mText[pos + 1] == '>') {
+                        next = pos + 2;
+                        addToken(pos, next, TYPE_TAG, from);
+                        state = STATE_TEXT;
+                    } else if (c == '"' || c == '\'') {
+                        next = indexOf(c, pos + 1);
+                        next = next < 0 ? mLength : next + 1;
+                        addToken(pos, next, TYPE_ATTR_VALUE, from);
+                    } else if (c == '<') {
+                        // Unclosed tag
+                        state = STATE_TEXT;
+                        next = pos;
+                    } else {
+                        next = skipName(pos);
+                        if (next > pos) {
+                            addToken(pos, next, TYPE_ATTR_NAME, from);
+                        } else {
+                            next = pos + 1;
+                        }
+                    }
+                    break;
+                case STATE_COMMENT:
+                    next = indexOf(COMMENT_END, pos);
+                    next = next < 0 ? mLength : next + COMMENT_END.length();
+                    addToken(pos, next, TYPE_COMMENT, from);
+                    if (next < mLength || mAtEnd) {
+                        state = STATE_TEXT;
+                    }
+                    break;
+                case STATE_CDATA:
+                default:
+                    next = indexOf(CDATA_END, pos);
+                    next = next < 0 ? mLength : next + CDATA_END.length();
+                    if (next < mLength || mAtEnd) {
+                        state = STATE_TEXT;
+                    }
+                    break;
+            }
+            if (next == mLength && !mAtEnd) {
+                // The last token may continue after the text
+                result.end = mBase + mLength;
+                return;
+            }
+            pos = next;
+        }
+        result.end = mBase + pos;
+        if (pos - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            result.addCheckpoint(mBase + pos, state);
+        }
+    }
+
+    private void addToken(int start, int end, int type, int from) {
+        if (end > from) {
+            mResult.addToken(mBase + start, mBase + end, type);
+        }
+    }
+
+    private int skipName(int pos) {
+        while (pos < mLength) {
+            char c = mText[pos];
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != ':' && c != '.' && c != '?') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < mLength; i++) {
+            if (mText[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(String str, int from) {
+        char first = str.charAt(0);
+        for (int i = indexOf(first, from); i >= 0; i = indexOf(first, i + 1)) {
+            if (startsWith(str, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(String str, int pos) {
+        if (pos + str.length() > mLength) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (mText[pos + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}